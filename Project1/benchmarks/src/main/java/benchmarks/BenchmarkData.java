@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Trace files used by the benchmarks. The bundled Mannheim trace is replicated 
+ * "scale" times, every copy shifted along the x axis, so that a scale of n gives 
+ * n times the positions and n times the trace entries of the bundled data.
+ * 
+ * Only the online trace of the Mannheim data is bundled. The offline trace is used
+ * where it exists (or is set with -Dpp.offline), otherwise the online trace stands
+ * in for it.
+ * 
+ * @author Pere
+ */
+public final class BenchmarkData {
+    
+    // Bundled trace, relative to the Project1 directory (override with -Dpp.trace=<file>)
+    private static final String TRACE_PATH = "src/data/MU.1.5meters.online.trace";
+    private static final String OFFLINE_TRACE_PATH = "src/data/MU.1.5meters.offline.trace";
+    
+    // Shift between two copies, larger than the extent of the bundled building
+    private static final double X_SHIFT = 100.0;
+    
+    private BenchmarkData() {
+    }
+    
+    public static File bundledTrace() throws IOException {
+        File file = new File(System.getProperty("pp.trace", TRACE_PATH));
+        if (!file.isFile()) {
+            file = new File("..", TRACE_PATH);
+        }
+        if (!file.isFile()) {
+            throw new IOException("Trace not found, run from the Project1 directory or set -Dpp.trace");
+        }
+        return file;
+    }
+    
+    // The offline trace, or the bundled (online) trace if there is none
+    public static File offlineTrace() throws IOException {
+        File file = new File(System.getProperty("pp.offline", OFFLINE_TRACE_PATH));
+        if (!file.isFile()) {
+            file = new File("..", OFFLINE_TRACE_PATH);
+        }
+        if (!file.isFile()) {
+            return bundledTrace();
+        }
+        return file;
+    }
+    
+    // Writes the bundled trace replicated scale times to a temporary file.
+    public static File scaledTrace(int scale) throws IOException {
+        return scaledTrace(bundledTrace(), scale);
+    }
+    
+    // Writes the offline trace replicated scale times to a temporary file.
+    public static File scaledOfflineTrace(int scale) throws IOException {
+        return scaledTrace(offlineTrace(), scale);
+    }
+    
+    private static File scaledTrace(File source, int scale) throws IOException {
+        File file = File.createTempFile("pp-bench-" + scale + "-", ".trace");
+        file.deleteOnExit();
+        
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for (int copy = 0; copy < scale; copy++) {
+                try (BufferedReader br = new BufferedReader(new FileReader(source))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        if (line.startsWith("#")) {
+                            continue;
+                        }
+                        bw.write(shift(line, copy * X_SHIFT));
+                        bw.newLine();
+                    }
+                }
+            }
+        }
+        return file;
+    }
+    
+    private static String shift(String line, double dx) {
+        if (dx == 0.0) {
+            return line;
+        }
+        int start = line.indexOf("pos=") + 4;
+        int end = line.indexOf(',', start);
+        double x = Double.parseDouble(line.substring(start, end));
+        return line.substring(0, start) + (x + dx) + line.substring(end);
+    }
+    
+}
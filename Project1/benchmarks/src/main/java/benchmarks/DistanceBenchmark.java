@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Logic.Positioning;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pi4.locutil.io.TraceGenerator;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * Signal strength distance between one online fingerprint and every offline 
+ * fingerprint (Positioning.getEuclideanDistSS).
+ * 
+ * @author Pere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceBenchmark {
+    
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    private Positioning positioning;
+    private SignalStrengthSamples online;
+    private ArrayList<SignalStrengthSamples> offline;
+    
+    @Setup
+    public void setup() throws IOException {
+        File offlineTrace = BenchmarkData.scaledOfflineTrace(scale);
+        File onlineTrace = BenchmarkData.scaledTrace(scale);
+        TraceGenerator traces = Positioning.loadTraces(offlineTrace, onlineTrace);
+        positioning = new Positioning(traces);
+        TraceGenerator tg = new TraceGenerator(traces);
+        tg.generate();
+        offline = new ArrayList<SignalStrengthSamples>(positioning.getJointSS(tg.getOffline()).values());
+        online = positioning.getJointSS(tg.getOnline()).values().iterator().next();
+    }
+    
+    @Benchmark
+    public void getEuclideanDistSS(Blackhole bh) {
+        for (SignalStrengthSamples fingerprint : offline) {
+            bh.consume(positioning.getEuclideanDistSS(online, fingerprint));
+        }
+    }
+    
+}
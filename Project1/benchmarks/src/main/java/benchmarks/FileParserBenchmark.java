@@ -0,0 +1,109 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import FileParser.EstimateWriter;
+import FileParser.FileParser;
+import Logic.DistanceError;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.QuantileSketch;
+
+/**
+ * Writing and reading estimation and evaluation files. The number of estimations 
+ * is the number of online positions of the bundled data times the scale.
+ * 
+ * @author Pere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileParserBenchmark {
+    
+    // Online positions of the bundled data
+    private static final int POSITIONS = 46;
+    
+    @Param({"1", "16", "256"})
+    public int scale;
+    
+    private HashMap<GeoPosition, GeoPosition> estimations;
+    private ArrayList<DistanceError> errors;
+    private QuantileSketch sketch;
+    private File estimationFile;
+    private File evaluationFile;
+    
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        estimations = new HashMap<GeoPosition, GeoPosition>();
+        errors = new ArrayList<DistanceError>();
+        sketch = new QuantileSketch();
+        for (int i = 0; i < POSITIONS * scale; i++) {
+            GeoPosition truePosition = new GeoPosition(i * 1.5, random.nextDouble() * 30.0, 0.0);
+            GeoPosition estimation = new GeoPosition(truePosition.getX() + random.nextGaussian() * 3.0, 
+                    truePosition.getY() + random.nextGaussian() * 3.0, 0.0);
+            estimations.put(truePosition, estimation);
+            DistanceError error = new DistanceError();
+            error.computeError(truePosition, estimation);
+            errors.add(error);
+            sketch.add(error.getErr());
+        }
+        estimationFile = File.createTempFile("pp-bench-estimations-", ".txt");
+        estimationFile.deleteOnExit();
+        evaluationFile = File.createTempFile("pp-bench-evaluation-", ".txt");
+        evaluationFile.deleteOnExit();
+        new FileParser().writeToFile(estimations, estimationFile);
+    }
+    
+    @Benchmark
+    public void writeToFile() throws IOException {
+        new FileParser().writeToFile(estimations, estimationFile);
+    }
+    
+    @Benchmark
+    public void estimateWriter() throws IOException {
+        try (EstimateWriter writer = new EstimateWriter(estimationFile)) {
+            for (HashMap.Entry<GeoPosition, GeoPosition> estimation : estimations.entrySet()) {
+                writer.add(estimation.getKey(), estimation.getValue());
+            }
+        }
+    }
+    
+    @Benchmark
+    public HashMap<GeoPosition, GeoPosition> readToFile() throws IOException {
+        return new FileParser().readToFile(estimationFile);
+    }
+    
+    @Benchmark
+    public void writeEvaluation() throws IOException {
+        new FileParser().writeEvaluation(new ArrayList<DistanceError>(errors), evaluationFile);
+    }
+    
+    @Benchmark
+    public void writeEvaluationSketch() throws IOException {
+        new FileParser().writeEvaluation(sketch, evaluationFile);
+    }
+    
+}
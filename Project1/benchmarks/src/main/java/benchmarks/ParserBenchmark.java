@@ -0,0 +1,56 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pi4.locutil.trace.Parser;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Parsing a trace file with Parser.parse.
+ * 
+ * @author Pere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    private File trace;
+    
+    @Setup
+    public void setup() throws IOException {
+        trace = BenchmarkData.scaledTrace(scale);
+    }
+    
+    @Benchmark
+    public ArrayList<TraceEntry> parse() throws IOException {
+        Parser parser = new Parser(trace);
+        parser.setPrecision(45.0);
+        return parser.parse();
+    }
+    
+}
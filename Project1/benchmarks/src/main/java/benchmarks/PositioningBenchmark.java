@@ -0,0 +1,63 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Logic.Positioning;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A full experiment: set generation, radio map and k-NN query of every online position 
+ * (Positioning.empirical_FP_KNN and model_FP_KNN).
+ * 
+ * @author Pere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PositioningBenchmark {
+    
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    @Param({"1", "3"})
+    public int k;
+    
+    private Positioning positioning;
+    
+    @Setup
+    public void setup() throws IOException {
+        File trace = BenchmarkData.scaledTrace(scale);
+        positioning = new Positioning(trace, trace);
+    }
+    
+    @Benchmark
+    public void empirical_FP_KNN(Blackhole bh) {
+        positioning.empirical_FP_KNN(k, (truePosition, estimation) -> bh.consume(estimation));
+    }
+    
+    @Benchmark
+    public void model_FP_KNN(Blackhole bh) {
+        positioning.model_FP_KNN((truePosition, estimation) -> bh.consume(estimation), k, -33.77, 3.415, 1.0);
+    }
+    
+}
@@ -0,0 +1,118 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Logic.DistanceMetrics;
+import Logic.KNNEngine;
+import Logic.ParallelRadioMapBuilder;
+import Logic.QueryContext;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.trace.Parser;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * One k-NN query on the compiled radio map of the bundled data: through a scan
+ * (KNNEngine.locate(SignalStrengthSamples, QueryContext)) and through the access
+ * points put into the query context (KNNEngine.locate(QueryContext)). Both must show
+ * gc.alloc.rate.norm = 0 B/op with -prof gc; main runs them with the profiler and
+ * fails if either allocates:
+ * <pre>
+ * java -cp benchmarks.jar benchmarks.QueryBenchmark
+ * </pre>
+ *
+ * @author Pere
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+    private KNNEngine engine;
+    private SignalStrengthSamples scan;
+    private long[] macs;
+    private double[] signalStrengths;
+
+    @Setup
+    public void setup() throws IOException {
+        File trace = BenchmarkData.bundledTrace();
+        List<TraceEntry> entries = new Parser(trace).parse();
+        engine = new KNNEngine(new ParallelRadioMapBuilder().build(entries), 3, DistanceMetrics.EUCLIDEAN);
+        scan = entries.get(entries.size() / 2).getSignalStrengthSamples();
+        macs = new long[scan.size()];
+        signalStrengths = new double[scan.size()];
+        int i = 0;
+        for (MACAddress mac : scan.keySet()) {
+            macs[i] = mac.toLong();
+            signalStrengths[i] = scan.getAverageSignalStrength(mac);
+            i++;
+        }
+    }
+
+    @Benchmark
+    public void locateScan(Blackhole bh) {
+        QueryContext context = engine.context();
+        engine.locate(scan, context);
+        bh.consume(context.getX());
+        bh.consume(context.getY());
+    }
+
+    @Benchmark
+    public void locateContext(Blackhole bh) {
+        QueryContext context = engine.context();
+        context.clear();
+        for (int i = 0; i < macs.length; i++) {
+            context.put(macs[i], signalStrengths[i]);
+        }
+        engine.locate(context);
+        bh.consume(context.getX());
+        bh.consume(context.getY());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(QueryBenchmark.class.getName() + "\\.")
+                .addProfiler(GCProfiler.class)
+                .build();
+        for (RunResult result : new Runner(options).run()) {
+            String benchmark = result.getParams().getBenchmark();
+            Result allocation = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            if (allocation == null) {
+                throw new IllegalStateException("No gc.alloc.rate.norm for " + benchmark);
+            }
+            // Less than a byte: an allocation per query would show its whole size
+            if (allocation.getScore() >= 1.0) {
+                throw new IllegalStateException(benchmark + " allocates " + allocation.getScore() + " B/op");
+            }
+        }
+    }
+
+}
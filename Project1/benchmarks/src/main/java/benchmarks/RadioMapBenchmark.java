@@ -0,0 +1,69 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Logic.Positioning;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.io.TraceGenerator;
+import org.pi4.locutil.trace.Parser;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Building the radio map from an offline set (Positioning.getJointSS and getJointSSRadar).
+ * 
+ * @author Pere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RadioMapBenchmark {
+    
+    @Param({"1", "4", "16"})
+    public int scale;
+    
+    private Positioning positioning;
+    private List<TraceEntry> offlineTraceEntries;
+    
+    @Setup
+    public void setup() throws IOException {
+        File trace = BenchmarkData.scaledTrace(scale);
+        positioning = new Positioning(trace, trace);
+        TraceGenerator tg = new TraceGenerator(new Parser(trace), new Parser(trace), 10, 5);
+        tg.generate();
+        offlineTraceEntries = tg.getOffline();
+    }
+    
+    @Benchmark
+    public HashMap<GeoPosition, SignalStrengthSamples> getJointSS() {
+        return positioning.getJointSS(offlineTraceEntries);
+    }
+    
+    @Benchmark
+    public HashMap<GeoPosition, SignalStrengthSamples> getJointSSRadar() {
+        return positioning.getJointSSRadar(offlineTraceEntries, -33.77, 3.415, 1.0);
+    }
+    
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pi4.locutil.Statistics;
+import org.pi4.locutil.StatisticsAccumulator;
+
+/**
+ * Statistics routines over signal-strength-like values.
+ * 
+ * @author Pere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatisticsBenchmark {
+    
+    @Param({"10", "1000", "100000"})
+    public int size;
+    
+    private double[] values;
+    private ArrayList<Double> list;
+    
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        values = new double[size];
+        list = new ArrayList<Double>(size);
+        for (int i = 0; i < size; i++) {
+            values[i] = -60.0 + 8.0 * random.nextGaussian();
+            list.add(values[i]);
+        }
+    }
+    
+    @Benchmark
+    public double median() {
+        return Statistics.median(values);
+    }
+    
+    @Benchmark
+    public double percentile() {
+        return Statistics.percentile(values, 0.9);
+    }
+    
+    @Benchmark
+    public double avgList() {
+        return Statistics.avg(list);
+    }
+    
+    @Benchmark
+    public double varArray() {
+        return Statistics.var(values);
+    }
+    
+    @Benchmark
+    public double varList() {
+        return Statistics.var(list);
+    }
+    
+    @Benchmark
+    public double accumulator() {
+        StatisticsAccumulator statistics = new StatisticsAccumulator();
+        statistics.addAll(values);
+        return statistics.getVariance();
+    }
+    
+}
@@ -0,0 +1,59 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package FileParser;
+
+import Logic.EstimateSink;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import org.pi4.locutil.GeoPosition;
+
+/**
+ * Writes estimations to a file as they arrive, in the same format as 
+ * FileParser.writeToFile, without collecting them in a map first.
+ * 
+ * @author Pere
+ */
+public class EstimateWriter implements EstimateSink, Closeable {
+    
+    private BufferedWriter bw;
+    private boolean first;
+    
+    public EstimateWriter(File file) throws FileNotFoundException {
+        bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)));
+        first = true;
+    }
+    
+    @Override
+    public void add(GeoPosition truePosition, GeoPosition estimation) {
+        try {
+            // Lines are separated, not terminated, by a line break
+            if (!first) {
+                bw.newLine();
+            }
+            first = false;
+            bw.write("True=" + truePosition.getX() + ","
+                    + truePosition.getY() + ","
+                    + truePosition.getZ() + ";Est="
+                    + estimation.getX() + ","
+                    + estimation.getY() + ","
+                    + estimation.getZ());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        bw.close();
+    }
+    
+}
@@ -19,6 +19,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.QuantileSketch;
+import org.pi4.locutil.metrics.EvaluationWriteEvent;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
 
 /**
  *
@@ -26,6 +30,9 @@ import org.pi4.locutil.GeoPosition;
  */
 public class FileParser {
     
+    private static final LatencyHistogram WRITE_TIME = Metrics.histogram("fileparser.write");
+    private static final LatencyHistogram READ_TIME = Metrics.histogram("fileparser.read");
+    
     private BufferedWriter bw;
     private BufferedReader br;
     
@@ -35,6 +42,7 @@ public class FileParser {
     }
     
     public void writeToFile(HashMap<GeoPosition,GeoPosition> outputRadioMap, File file) {
+        long start = System.nanoTime();
         
         try {
             OutputStreamWriter osw = new OutputStreamWriter(new FileOutputStream(file));
@@ -66,10 +74,14 @@ public class FileParser {
                     // Do nothing
                 }
             }
+            WRITE_TIME.recordSince(start);
         }
     }
     
     public void writeEvaluation(ArrayList<DistanceError> errList, File file) {
+        long start = System.nanoTime();
+        EvaluationWriteEvent event = new EvaluationWriteEvent();
+        event.begin();
         // This method evaluates the given error values list by creating a cumulative distribution function of such a list.
         
         // Sort the error values (lowest to highest error)
@@ -101,10 +113,57 @@ public class FileParser {
                     // Do nothing
                 }
             }
+            WRITE_TIME.recordSince(start);
+            commit(event, file, errList.size());
+        }
+    }
+    
+    public void writeEvaluation(QuantileSketch errors, File file) {
+        long start = System.nanoTime();
+        EvaluationWriteEvent event = new EvaluationWriteEvent();
+        event.begin();
+        // Same output as above, but the cumulative distribution function comes from the 
+        // buckets of the sketch, so there is nothing to sort.
+        double[][] cdf = errors.getCDF();
+        
+        try {
+            OutputStreamWriter osw = new OutputStreamWriter(new FileOutputStream(file));
+            bw = new BufferedWriter(osw);
+            
+            for (int i = 0; i < cdf[0].length; i++) {
+                bw.write("err=" + cdf[0][i] + ";percentage=" + cdf[1][i]);
+                if (i + 1 < cdf[0].length) 
+                    bw.newLine();
+            }
+            
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (bw != null) {
+                try {
+                    bw.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+            WRITE_TIME.recordSince(start);
+            commit(event, file, cdf[0].length);
+        }
+    }
+    
+    private void commit(EvaluationWriteEvent event, File file, int points) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.getPath();
+            event.points = points;
+            event.commit();
         }
     }
     
     public HashMap<GeoPosition, GeoPosition> readToFile(File file) {
+        long start = System.nanoTime();
         
         HashMap<GeoPosition, GeoPosition> output = null;
         
@@ -134,6 +193,7 @@ public class FileParser {
                     // Do nothing
                 }
             }
+            READ_TIME.recordSince(start);
         }
         return output;
     }
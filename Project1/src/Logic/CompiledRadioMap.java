@@ -0,0 +1,158 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * Radio map compiled into dense matrices (position x access point): the average
+ * signal strength, its variance and the number of samples, NaN (or 0 samples) where a
+ * position does not hear an access point. The access points are sorted by their MAC
+ * values, as in <code>RadioMapSnapshot</code>. See <code>ParallelRadioMapBuilder</code>.
+ *
+ * @author Pere
+ */
+public class CompiledRadioMap {
+
+    private final GeoPosition[] positions;
+    private final long[] macs;
+    private final double[] averages;
+    private final double[] variances;
+    private final int[] counts;
+
+    CompiledRadioMap(GeoPosition[] positions, long[] macs, double[] averages, double[] variances, int[] counts) {
+        this.positions = positions;
+        this.macs = macs;
+        this.averages = averages;
+        this.variances = variances;
+        this.counts = counts;
+    }
+
+    public int getPositionCount() {
+        return positions.length;
+    }
+
+    public int getAccessPointCount() {
+        return macs.length;
+    }
+
+    public GeoPosition getPosition(int position) {
+        return positions[position];
+    }
+
+    public double getX(int position) {
+        return positions[position].getX();
+    }
+
+    public double getY(int position) {
+        return positions[position].getY();
+    }
+
+    public MACAddress getAccessPoint(int ap) {
+        return MACAddress.valueOf(macs[ap]);
+    }
+
+    /**
+     * Returns the index of an access point.
+     *
+     * @return  the index, or -1 if no position hears the access point
+     */
+    public int indexOf(MACAddress mac) {
+        return indexOf(mac.toLong());
+    }
+
+    /**
+     * Returns the index of an access point by its 48 bit MAC value.
+     *
+     * @return  the index, or -1 if no position hears the access point
+     */
+    public int indexOf(long mac) {
+        int index = Arrays.binarySearch(macs, mac);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Returns the index of a position, ignoring the orientation.
+     *
+     * @return  the index, or -1 if the position is not in the radio map
+     */
+    public int indexOf(GeoPosition position) {
+        for (int p = 0; p < positions.length; p++)
+            if (positions[p].equalsWithoutOrientation(position))
+                return p;
+        return -1;
+    }
+
+    /**
+     * Returns the average signal strength of an access point at a position.
+     *
+     * @return  the average, NaN if the position does not hear the access point
+     */
+    public double getAverage(int position, int ap) {
+        return averages[position * macs.length + ap];
+    }
+
+    /**
+     * Returns the sample variance of the signal strength of an access point at a position.
+     *
+     * @return  the variance, NaN if the position does not hear the access point
+     */
+    public double getVariance(int position, int ap) {
+        return variances[position * macs.length + ap];
+    }
+
+    /**
+     * Returns the number of samples of an access point at a position.
+     */
+    public int getCount(int position, int ap) {
+        return counts[position * macs.length + ap];
+    }
+
+    // The matrices (position * access points + access point), not copied, for the distance metrics
+    double[] averages() {
+        return averages;
+    }
+
+    double[] variances() {
+        return variances;
+    }
+
+    /**
+     * Returns the average signal strengths of a fingerprint over the access points of
+     * this radio map (NaN if not heard).
+     */
+    public double[] toVector(SignalStrengthSamples ss) {
+        double[] vector = new double[macs.length];
+        Arrays.fill(vector, Double.NaN);
+        for (MACAddress mac : ss.keySet()) {
+            int ap = indexOf(mac);
+            if (ap >= 0)
+                vector[ap] = ss.getAverageSignalStrength(mac);
+        }
+        return vector;
+    }
+
+    /**
+     * Writes the radio map as a snapshot file (see <code>RadioMapSnapshot.open</code>).
+     */
+    public void write(File file) throws IOException {
+        double[] coordinates = new double[4 * positions.length];
+        for (int p = 0; p < positions.length; p++) {
+            coordinates[4 * p] = positions[p].getX();
+            coordinates[4 * p + 1] = positions[p].getY();
+            coordinates[4 * p + 2] = positions[p].getZ();
+            coordinates[4 * p + 3] = positions[p].getOrientation();
+        }
+        RadioMapSnapshot.write(macs, coordinates, averages, variances, file);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Sliding windows over the scans of many devices (<code>TraceEntry.getId()</code>),
+ * the live counterpart of joining <code>ONLINE_SAMPLE_SIZE</code> scans per position.
+ * A window holds either the last n scans of a device or its scans of the last t
+ * milliseconds (by <code>TraceEntry.getTimestamp()</code>).
+ *
+ * Every window keeps the sum and the number of samples per access point of the scans
+ * it holds, updated when a scan enters or leaves it, so the joined fingerprint is
+ * available without averaging the window again. The state of a device is a few
+ * primitive arrays sized to the access points it hears; <code>removeIdle</code> drops
+ * devices that stopped scanning. Windows of different devices can be updated
+ * concurrently.
+ *
+ * @author Pere
+ */
+public class DeviceWindows {
+
+    private final int maxScans; // 0 for time based windows
+    private final long span; // 0 for count based windows
+    private final ConcurrentHashMap<MACAddress, Window> windows;
+
+    // The scans of one device and the running sums of its access points
+    private static class Window {
+        // scans, as a ring buffer
+        long[] times = new long[4];
+        long[][] scanMacs = new long[4][];
+        double[][] scanValues = new double[4][];
+        int first;
+        int scans;
+        // running sums per access point, the first apCount entries are used
+        long[] macs = new long[8];
+        double[] sums = new double[8];
+        int[] counts = new int[8];
+        int apCount;
+        long lastTimestamp;
+        boolean removed; // by removeIdle
+
+        void add(long time, long[] macs, double[] values, int maxScans, long span) {
+            if (maxScans > 0 && scans == maxScans)
+                removeFirst();
+            if (span > 0)
+                while (scans > 0 && times[first] <= time - span)
+                    removeFirst();
+            if (scans == times.length)
+                grow();
+            int slot = (first + scans) % times.length;
+            times[slot] = time;
+            scanMacs[slot] = macs;
+            scanValues[slot] = values;
+            scans++;
+            for (int i = 0; i < macs.length; i++) {
+                int ap = indexOf(macs[i]);
+                if (ap < 0)
+                    ap = addAccessPoint(macs[i]);
+                sums[ap] += values[i];
+                counts[ap]++;
+            }
+            lastTimestamp = time;
+        }
+
+        void removeFirst() {
+            long[] macs = scanMacs[first];
+            double[] values = scanValues[first];
+            for (int i = 0; i < macs.length; i++) {
+                int ap = indexOf(macs[i]);
+                if (--counts[ap] == 0) {
+                    // swap with the last access point, so the used entries stay dense
+                    apCount--;
+                    this.macs[ap] = this.macs[apCount];
+                    sums[ap] = sums[apCount];
+                    counts[ap] = counts[apCount];
+                } else {
+                    sums[ap] -= values[i];
+                }
+            }
+            scanMacs[first] = null;
+            scanValues[first] = null;
+            first = (first + 1) % times.length;
+            scans--;
+        }
+
+        // A device hears a few dozen access points, a linear search beats hashing
+        int indexOf(long mac) {
+            for (int ap = 0; ap < apCount; ap++)
+                if (macs[ap] == mac)
+                    return ap;
+            return -1;
+        }
+
+        int addAccessPoint(long mac) {
+            if (apCount == macs.length) {
+                macs = Arrays.copyOf(macs, 2 * apCount);
+                sums = Arrays.copyOf(sums, 2 * apCount);
+                counts = Arrays.copyOf(counts, 2 * apCount);
+            }
+            macs[apCount] = mac;
+            sums[apCount] = 0.0;
+            counts[apCount] = 0;
+            return apCount++;
+        }
+
+        void grow() {
+            int capacity = 2 * times.length;
+            long[] newTimes = new long[capacity];
+            long[][] newMacs = new long[capacity][];
+            double[][] newValues = new double[capacity][];
+            for (int i = 0; i < scans; i++) {
+                int slot = (first + i) % times.length;
+                newTimes[i] = times[slot];
+                newMacs[i] = scanMacs[slot];
+                newValues[i] = scanValues[slot];
+            }
+            times = newTimes;
+            scanMacs = newMacs;
+            scanValues = newValues;
+            first = 0;
+        }
+    }
+
+    private DeviceWindows(int maxScans, long span) {
+        this.maxScans = maxScans;
+        this.span = span;
+        this.windows = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns windows over the last <code>scans</code> scans of every device.
+     */
+    public static DeviceWindows countBased(int scans) {
+        if (scans < 1)
+            throw new IllegalArgumentException("scans must be >= 1");
+        return new DeviceWindows(scans, 0);
+    }
+
+    /**
+     * Returns windows over the scans of the last <code>millis</code> milliseconds of
+     * every device, counted back from its latest scan.
+     */
+    public static DeviceWindows timeBased(long millis) {
+        if (millis < 1)
+            throw new IllegalArgumentException("millis must be >= 1");
+        return new DeviceWindows(0, millis);
+    }
+
+    /**
+     * Adds a scan to the window of its device and removes the scans that leave the
+     * window.
+     *
+     * @param entry  the scan
+     */
+    public void add(TraceEntry entry) {
+        SignalStrengthSamples ss = entry.getSignalStrengthSamples();
+        long[] macs = new long[ss.size()];
+        double[] values = new double[ss.size()];
+        int i = 0;
+        for (MACAddress mac : ss.keySet()) {
+            macs[i] = mac.toLong();
+            values[i] = ss.getAverageSignalStrength(mac);
+            i++;
+        }
+        while (true) {
+            Window window = windows.computeIfAbsent(entry.getId(), device -> new Window());
+            synchronized (window) {
+                // retry if removeIdle removed the window in the meantime
+                if (!window.removed) {
+                    window.add(entry.getTimestamp(), macs, values, maxScans, span);
+                    return;
+                }
+            }
+        }
+    }
+
+    public int getDeviceCount() {
+        return windows.size();
+    }
+
+    /**
+     * Returns the number of scans in the window of a device.
+     */
+    public int getScanCount(MACAddress device) {
+        Window window = windows.get(device);
+        if (window == null)
+            return 0;
+        synchronized (window) {
+            return window.scans;
+        }
+    }
+
+    /**
+     * Returns the joined fingerprint of a device: one sample per access point, the
+     * average signal strength over the scans in its window.
+     *
+     * @return  the fingerprint, or null if the device is unknown
+     */
+    public SignalStrengthSamples getFingerprint(MACAddress device) {
+        Window window = windows.get(device);
+        if (window == null)
+            return null;
+        SignalStrengthSamples ss = new SignalStrengthSamples();
+        synchronized (window) {
+            for (int ap = 0; ap < window.apCount; ap++)
+                ss.put(MACAddress.valueOf(window.macs[ap]), window.sums[ap] / window.counts[ap]);
+        }
+        return ss;
+    }
+
+    /**
+     * Returns the joined fingerprint of a device as a vector over the access points of
+     * a radio map (see <code>RadioMapSnapshot.toVector</code>).
+     *
+     * @return  the vector, or null if the device is unknown
+     */
+    public double[] toVector(MACAddress device, RadioMapSnapshot radioMap) {
+        Window window = windows.get(device);
+        if (window == null)
+            return null;
+        double[] vector = new double[radioMap.getAccessPointCount()];
+        Arrays.fill(vector, Double.NaN);
+        synchronized (window) {
+            for (int ap = 0; ap < window.apCount; ap++) {
+                int index = radioMap.indexOf(window.macs[ap]);
+                if (index >= 0)
+                    vector[index] = window.sums[ap] / window.counts[ap];
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Removes the devices whose latest scan is older than the specified timestamp.
+     *
+     * @return  the number of removed devices
+     */
+    public int removeIdle(long timestamp) {
+        int removed = 0;
+        Iterator<Window> it = windows.values().iterator();
+        while (it.hasNext()) {
+            Window window = it.next();
+            synchronized (window) {
+                if (window.lastTimestamp < timestamp) {
+                    window.removed = true;
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+}
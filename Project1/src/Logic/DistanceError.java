@@ -36,7 +36,7 @@ public class DistanceError implements Comparable<DistanceError>{
     
     @Override
     public int compareTo(DistanceError next) {
-        return err < next.getErr()? -1 : 1;
+        return Double.compare(err, next.getErr());
     }
     
 }
@@ -0,0 +1,34 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+/**
+ * Distance between a query fingerprint and the fingerprints of a compiled radio map.
+ * A metric computes the distances to all positions in one call, so the loop over the
+ * positions and access points belongs to the metric and is compiled for it alone:
+ * choosing a metric costs one call per query, not one per access point. See
+ * <code>DistanceMetrics</code> for the built-in metrics.
+ *
+ * Only the access points heard in both fingerprints are compared (unheard entries are
+ * NaN), like <code>Positioning.getEuclideanDistSS</code>.
+ *
+ * @author Pere
+ */
+public interface DistanceMetric {
+
+    public String getName();
+
+    /**
+     * Computes the distance of the query to every position of the radio map.
+     *
+     * @param query  average signal strength per access point of the radio map, NaN if not heard
+     * @param queryVariances  variance per access point of the query, or null if unknown
+     * @param radioMap  the radio map
+     * @param distances  receives the distance per position, at least getPositionCount() long
+     */
+    public void distances(double[] query, double[] queryVariances, CompiledRadioMap radioMap, double[] distances);
+
+}
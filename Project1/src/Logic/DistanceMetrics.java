@@ -0,0 +1,188 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+/**
+ * The built-in distance metrics. Every metric is its own final class with its own
+ * loop over the matrices of the radio map.
+ *
+ * @author Pere
+ */
+public final class DistanceMetrics {
+
+    /**
+     * Signal strength of an inaudible access point, the origin of the cosine metric.
+     */
+    public static final double MISSING_SIGNAL_STRENGTH = -100.0;
+
+    public static final DistanceMetric EUCLIDEAN = new Euclidean();
+    public static final DistanceMetric MANHATTAN = new Manhattan();
+    public static final DistanceMetric CHEBYSHEV = new Chebyshev();
+    public static final DistanceMetric COSINE = new Cosine();
+    public static final DistanceMetric BHATTACHARYYA = new Bhattacharyya(1.0);
+
+    private DistanceMetrics() {
+    }
+
+    /**
+     * Returns the Bhattacharyya distance between normal distributions per access point,
+     * with the variances of the radio map and the query, each at least
+     * <code>minVariance</code> (a single scan has no variance).
+     */
+    public static DistanceMetric bhattacharyya(double minVariance) {
+        return new Bhattacharyya(minVariance);
+    }
+
+    /**
+     * Returns the built-in metric with the specified name (case insensitive): euclidean,
+     * manhattan, chebyshev, cosine or bhattacharyya.
+     */
+    public static DistanceMetric forName(String name) {
+        for (DistanceMetric metric : new DistanceMetric[] { EUCLIDEAN, MANHATTAN, CHEBYSHEV, COSINE, BHATTACHARYYA })
+            if (metric.getName().equalsIgnoreCase(name))
+                return metric;
+        throw new IllegalArgumentException("Unknown distance metric: " + name);
+    }
+
+    private static final class Euclidean implements DistanceMetric {
+        @Override
+        public String getName() {
+            return "euclidean";
+        }
+
+        @Override
+        public void distances(double[] query, double[] queryVariances, CompiledRadioMap radioMap, double[] distances) {
+            double[] averages = radioMap.averages();
+            int aps = query.length;
+            int positions = radioMap.getPositionCount();
+            for (int p = 0, base = 0; p < positions; p++, base += aps) {
+                double sum = 0.0;
+                for (int ap = 0; ap < aps; ap++) {
+                    double diff = query[ap] - averages[base + ap];
+                    if (diff == diff) // both heard (not NaN)
+                        sum += diff * diff;
+                }
+                distances[p] = Math.sqrt(sum);
+            }
+        }
+    }
+
+    private static final class Manhattan implements DistanceMetric {
+        @Override
+        public String getName() {
+            return "manhattan";
+        }
+
+        @Override
+        public void distances(double[] query, double[] queryVariances, CompiledRadioMap radioMap, double[] distances) {
+            double[] averages = radioMap.averages();
+            int aps = query.length;
+            int positions = radioMap.getPositionCount();
+            for (int p = 0, base = 0; p < positions; p++, base += aps) {
+                double sum = 0.0;
+                for (int ap = 0; ap < aps; ap++) {
+                    double diff = query[ap] - averages[base + ap];
+                    if (diff == diff)
+                        sum += Math.abs(diff);
+                }
+                distances[p] = sum;
+            }
+        }
+    }
+
+    private static final class Chebyshev implements DistanceMetric {
+        @Override
+        public String getName() {
+            return "chebyshev";
+        }
+
+        @Override
+        public void distances(double[] query, double[] queryVariances, CompiledRadioMap radioMap, double[] distances) {
+            double[] averages = radioMap.averages();
+            int aps = query.length;
+            int positions = radioMap.getPositionCount();
+            for (int p = 0, base = 0; p < positions; p++, base += aps) {
+                double max = 0.0;
+                for (int ap = 0; ap < aps; ap++) {
+                    double diff = Math.abs(query[ap] - averages[base + ap]);
+                    if (diff > max) // false for NaN
+                        max = diff;
+                }
+                distances[p] = max;
+            }
+        }
+    }
+
+    // 1 - cosine similarity of the signal strengths above MISSING_SIGNAL_STRENGTH, so
+    // the vectors are positive; 1 if no access point is heard in both
+    private static final class Cosine implements DistanceMetric {
+        @Override
+        public String getName() {
+            return "cosine";
+        }
+
+        @Override
+        public void distances(double[] query, double[] queryVariances, CompiledRadioMap radioMap, double[] distances) {
+            double[] averages = radioMap.averages();
+            int aps = query.length;
+            int positions = radioMap.getPositionCount();
+            for (int p = 0, base = 0; p < positions; p++, base += aps) {
+                double dot = 0.0;
+                double queryNorm = 0.0;
+                double norm = 0.0;
+                for (int ap = 0; ap < aps; ap++) {
+                    double q = query[ap] - MISSING_SIGNAL_STRENGTH;
+                    double f = averages[base + ap] - MISSING_SIGNAL_STRENGTH;
+                    if (q * f == q * f) { // both heard (not NaN)
+                        dot += q * f;
+                        queryNorm += q * q;
+                        norm += f * f;
+                    }
+                }
+                distances[p] = dot > 0.0 ? 1.0 - dot / Math.sqrt(queryNorm * norm) : 1.0;
+            }
+        }
+    }
+
+    // Sum over the access points heard in both of the Bhattacharyya distance of two normal
+    // distributions: (m1 - m2)^2 / (4 (v1 + v2)) + ln((v1 + v2) / (2 sqrt(v1 v2))) / 2
+    private static final class Bhattacharyya implements DistanceMetric {
+        private final double minVariance;
+
+        Bhattacharyya(double minVariance) {
+            if (!(minVariance > 0.0))
+                throw new IllegalArgumentException("minVariance must be > 0");
+            this.minVariance = minVariance;
+        }
+
+        @Override
+        public String getName() {
+            return "bhattacharyya";
+        }
+
+        @Override
+        public void distances(double[] query, double[] queryVariances, CompiledRadioMap radioMap, double[] distances) {
+            double[] averages = radioMap.averages();
+            double[] variances = radioMap.variances();
+            double minVariance = this.minVariance;
+            int aps = query.length;
+            int positions = radioMap.getPositionCount();
+            for (int p = 0, base = 0; p < positions; p++, base += aps) {
+                double sum = 0.0;
+                for (int ap = 0; ap < aps; ap++) {
+                    double diff = query[ap] - averages[base + ap];
+                    if (diff != diff) // not heard in both
+                        continue;
+                    double v1 = Math.max(variances[base + ap], minVariance);
+                    double v2 = queryVariances == null ? minVariance : Math.max(queryVariances[ap], minVariance);
+                    double v = v1 + v2;
+                    sum += diff * diff / (4 * v) + 0.5 * Math.log(v / (2 * Math.sqrt(v1 * v2)));
+                }
+                distances[p] = sum;
+            }
+        }
+    }
+}
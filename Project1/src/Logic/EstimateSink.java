@@ -0,0 +1,28 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import org.pi4.locutil.GeoPosition;
+
+/**
+ * Receives the estimations of a positioning run, one (true position, estimated
+ * position) pair at a time, as soon as they are computed.
+ * 
+ * @author Pere
+ */
+public interface EstimateSink {
+    
+    public void add(GeoPosition truePosition, GeoPosition estimation);
+    
+    // Returns a sink that passes every estimation to this sink and then to the next one.
+    public default EstimateSink andThen(EstimateSink next) {
+        return (truePosition, estimation) -> {
+            add(truePosition, estimation);
+            next.add(truePosition, estimation);
+        };
+    }
+    
+}
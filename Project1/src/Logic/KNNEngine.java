@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * k nearest neighbors on a compiled radio map with a chosen distance metric. The
+ * estimation is the average of the k positions with the smallest distance.
+ *
+ * Every thread queries with its own <code>QueryContext</code>, which holds all buffers
+ * of a query; <code>locate(QueryContext)</code> and
+ * <code>locate(SignalStrengthSamples, QueryContext)</code> allocate nothing.
+ *
+ * @author Pere
+ */
+public class KNNEngine {
+
+    private final CompiledRadioMap radioMap;
+    private final int k;
+    private final DistanceMetric metric;
+    private final ThreadLocal<QueryContext> contexts;
+
+    public KNNEngine(CompiledRadioMap radioMap, int k, DistanceMetric metric) {
+        if (k < 1 || k > radioMap.getPositionCount())
+            throw new IllegalArgumentException("k must be between 1 and the number of positions.");
+        this.radioMap = radioMap;
+        this.k = k;
+        this.metric = metric;
+        this.contexts = ThreadLocal.withInitial(() -> new QueryContext(this));
+    }
+
+    public CompiledRadioMap getRadioMap() {
+        return radioMap;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public DistanceMetric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Returns the query context of the calling thread, created on its first call.
+     */
+    public QueryContext context() {
+        return contexts.get();
+    }
+
+    /**
+     * Estimates the position of the query of a context and stores it in the context.
+     * Allocates nothing.
+     *
+     * @param context  a context of this engine, with the query set
+     * @return  false if the query is not close to any position (e.g. no access point known)
+     */
+    public boolean locate(QueryContext context) {
+        if (context.engine != this)
+            throw new IllegalArgumentException("The context belongs to another engine.");
+        metric.distances(context.query, context.variances, radioMap, context.distances);
+        NearestNeighbors nearest = context.nearest;
+        nearest.clear();
+        double[] distances = context.distances;
+        for (int p = 0; p < distances.length; p++)
+            nearest.offer(p, distances[p]);
+        int size = nearest.size();
+        if (size == 0) {
+            context.x = Double.NaN;
+            context.y = Double.NaN;
+            return false;
+        }
+        double x = 0.0;
+        double y = 0.0;
+        for (int i = 0; i < size; i++) {
+            x += radioMap.getX(nearest.index(i));
+            y += radioMap.getY(nearest.index(i));
+        }
+        context.x = x/size;
+        context.y = y/size;
+        return true;
+    }
+
+    /**
+     * Estimates the position of a scan and stores it in a context. Allocates nothing.
+     *
+     * @param scan  the scan (or joined scans, whose variances are used by metrics that need them)
+     * @param context  a context of this engine
+     * @return  false if the scan is not close to any position (e.g. no access point known)
+     */
+    public boolean locate(SignalStrengthSamples scan, QueryContext context) {
+        context.clear();
+        context.put(scan);
+        return locate(context);
+    }
+
+    /**
+     * Estimates the position of a scan, with the context of the calling thread. Allocates
+     * the returned position; see <code>locate(SignalStrengthSamples, QueryContext)</code>.
+     *
+     * @param scan  the scan (or joined scans, whose variances are used by metrics that need them)
+     * @return  the estimation
+     */
+    public GeoPosition locate(SignalStrengthSamples scan) {
+        QueryContext context = contexts.get();
+        locate(scan, context);
+        return new GeoPosition(context.getX(), context.getY());
+    }
+}
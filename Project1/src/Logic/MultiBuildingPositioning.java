@@ -0,0 +1,154 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.MACAddressIndex;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * Positioning over several buildings, each with its own radio map. Before any
+ * distance is computed, a scan is routed to the building whose access points it
+ * hears most: an inverted index maps every access point to the buildings that hear
+ * it, so routing costs one lookup per heard access point and one vote per building
+ * of that access point, independent of the number of buildings. Only the radio map
+ * of that building is searched afterwards.
+ *
+ * @author Pere
+ */
+public class MultiBuildingPositioning {
+
+    private List<String> names;
+    private List<RadioMapSnapshot> radioMaps;
+    private MACAddressIndex aps;
+    private List<int[]> apBuildings; // the buildings of every access point of aps
+    private ThreadLocal<Votes> votes;
+
+    public MultiBuildingPositioning() {
+        this.names = new ArrayList<>();
+        this.radioMaps = new ArrayList<>();
+        this.aps = new MACAddressIndex();
+        this.apBuildings = new ArrayList<>();
+        this.votes = ThreadLocal.withInitial(Votes::new);
+    }
+
+    // Votes of one route call per building, reset after every call through the touched buildings
+    private static final class Votes {
+        int[] counts = new int[0];
+        int[] touched = new int[0];
+    }
+
+    /**
+     * Adds a building.
+     *
+     * @param name  the name of the building
+     * @param radioMap  the radio map of the building
+     * @return  the index of the building
+     */
+    public int addBuilding(String name, RadioMapSnapshot radioMap) {
+        int building = names.size();
+        for (int ap = 0; ap < radioMap.getAccessPointCount(); ap++) {
+            int index = aps.add(radioMap.getAccessPoint(ap));
+            if (index == apBuildings.size()) {
+                apBuildings.add(new int[] { building });
+            } else {
+                int[] buildings = apBuildings.get(index);
+                buildings = Arrays.copyOf(buildings, buildings.length + 1);
+                buildings[buildings.length - 1] = building;
+                apBuildings.set(index, buildings);
+            }
+        }
+        names.add(name);
+        radioMaps.add(radioMap);
+        return building;
+    }
+
+    public int getBuildingCount() {
+        return names.size();
+    }
+
+    public String getBuildingName(int building) {
+        return names.get(building);
+    }
+
+    public RadioMapSnapshot getRadioMap(int building) {
+        return radioMaps.get(building);
+    }
+
+    /**
+     * Returns the building whose access points the scan hears most (the first one
+     * on a tie).
+     *
+     * @param scan  the scan
+     * @return  the index of the building, or -1 if the scan hears no known access point
+     */
+    public int route(SignalStrengthSamples scan) {
+        Votes votes = this.votes.get();
+        if (votes.counts.length < names.size()) {
+            votes.counts = new int[names.size()];
+            votes.touched = new int[names.size()];
+        }
+        int[] counts = votes.counts;
+        int[] touched = votes.touched;
+        int touchedCount = 0;
+        for (MACAddress mac : scan.keySet()) {
+            int index = aps.indexOf(mac);
+            if (index < 0)
+                continue;
+            for (int b : apBuildings.get(index)) {
+                if (counts[b]++ == 0)
+                    touched[touchedCount++] = b;
+            }
+        }
+        int best = -1;
+        int bestCount = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int b = touched[i];
+            if (counts[b] > bestCount || (counts[b] == bestCount && b < best)) {
+                best = b;
+                bestCount = counts[b];
+            }
+            counts[b] = 0;
+        }
+        return best;
+    }
+
+    /**
+     * Estimates the position of a scan as the average of its k nearest positions in the
+     * radio map of the building it is routed to.
+     *
+     * @param scan  the scan
+     * @param k  the number of nearest neighbors
+     * @return  the estimation, or null if the scan hears no known access point
+     * @throws IllegalArgumentException  if the building has less than k positions
+     */
+    public GeoPosition estimate(SignalStrengthSamples scan, int k) {
+        int building = route(scan);
+        if (building < 0)
+            return null;
+        RadioMapSnapshot radioMap = radioMaps.get(building);
+        if (k > radioMap.getPositionCount())
+            throw new IllegalArgumentException("k must be smaller than the number of neighbors.");
+        double[] vector = radioMap.toVector(scan);
+
+        NearestNeighbors nearest = new NearestNeighbors(k);
+        for (int p = 0; p < radioMap.getPositionCount(); p++)
+            nearest.offer(p, radioMap.distance(p, vector));
+        double x = 0.0;
+        double y = 0.0;
+        for (int i = 0; i < nearest.size(); i++) {
+            x += radioMap.getX(nearest.index(i));
+            y += radioMap.getY(nearest.index(i));
+        }
+        return new GeoPosition(x/nearest.size(), y/nearest.size());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+/**
+ * The k smallest distances offered so far, with the indices of their positions,
+ * kept sorted by insertion. Meant for small k, and reusable with <code>clear</code>.
+ *
+ * @author Pere
+ */
+final class NearestNeighbors {
+
+    private final int[] indices;
+    private final double[] distances;
+    private int size;
+
+    NearestNeighbors(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be >= 1.");
+        this.indices = new int[k];
+        this.distances = new double[k];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // NaN distances are never kept
+    void offer(int index, double distance) {
+        int k = indices.length;
+        if (!(distance < (size == k ? distances[k - 1] : Double.POSITIVE_INFINITY)))
+            return;
+        int i = size < k ? size++ : k - 1;
+        while (i > 0 && distances[i - 1] > distance) {
+            distances[i] = distances[i - 1];
+            indices[i] = indices[i - 1];
+            i--;
+        }
+        distances[i] = distance;
+        indices[i] = index;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == indices.length;
+    }
+
+    int index(int i) {
+        return indices[i];
+    }
+
+    double distance(int i) {
+        return distances[i];
+    }
+}
@@ -37,11 +37,12 @@ public class Neighbor implements Comparable<Neighbor> {
         this.distance = distance;
     }
     
-    // Returns 1 if this neighbor has closest distance to the measured position than 
-    // the compared neighbor one, return -1 otherwise.
+    // Returns -1 if this neighbor has closest distance to the measured position than 
+    // the compared neighbor one, 1 if it is farther and 0 if both are equally far.
+    // Undefined (NaN) distances are sorted last.
     @Override
     public int compareTo(Neighbor next) {
-        return distance < next.getDistance() ? -1 : 1;
+        return Double.compare(distance, next.getDistance());
     }
     
 }
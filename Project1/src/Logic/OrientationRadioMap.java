@@ -0,0 +1,219 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.MACAddressIndex;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Radio map with one sub-map per orientation. The orientations of the offline trace
+ * entries are quantized to multiples of a step (e.g. 45 degrees) and every quantized
+ * orientation gets its own fingerprints, compiled into a matrix of average signal
+ * strengths (position x access point, NaN if not heard). Entries without orientation
+ * form an extra sub-map that is searched by every query.
+ *
+ * A query is only compared with the sub-map(s) of its orientation: the nearest one if
+ * its orientation is within a quarter step of it, otherwise the two it lies between.
+ *
+ * @author Pere
+ */
+public class OrientationRadioMap {
+
+    private double step;
+    private int orientations;
+    private MACAddressIndex aps;
+    private GeoPosition[] positions; // distinct positions, over all sub-maps
+    private int[][] partitionPositions; // per sub-map: index into positions per fingerprint
+    private double[][][] partitionAverages; // per sub-map: average signal strength per fingerprint and AP
+
+    /**
+     * Builds the sub-maps from the specified offline trace entries.
+     *
+     * @param traceEntries  the offline trace entries
+     * @param step  width of the quantized orientations in degrees, must divide 360
+     */
+    public OrientationRadioMap(List<TraceEntry> traceEntries, double step) {
+        if (!(step > 0.0) || Math.abs(360.0 / step - Math.rint(360.0 / step)) > 1e-9)
+            throw new IllegalArgumentException("The step must divide 360 degrees.");
+        this.step = step;
+        this.orientations = (int) Math.rint(360.0 / step);
+
+        // Join the signal strengths per sub-map and position, like Positioning.getJointSS
+        aps = new MACAddressIndex();
+        LinkedHashMap<GeoPosition, Integer> positionIndex = new LinkedHashMap<>();
+        List<LinkedHashMap<Integer, SignalStrengthSamples>> partitions = new ArrayList<>();
+        for (int p = 0; p <= orientations; p++)
+            partitions.add(new LinkedHashMap<>());
+        for (TraceEntry traceEntry : traceEntries) {
+            GeoPosition pos = traceEntry.getGeoPosition();
+            GeoPosition key = new GeoPosition(pos.getX(), pos.getY(), pos.getZ());
+            Integer position = positionIndex.get(key);
+            if (position == null) {
+                position = positionIndex.size();
+                positionIndex.put(key, position);
+            }
+            LinkedHashMap<Integer, SignalStrengthSamples> partition = partitions.get(partitionOf(pos.getOrientation()));
+            SignalStrengthSamples ss = partition.get(position);
+            if (ss == null) {
+                ss = new SignalStrengthSamples();
+                partition.put(position, ss);
+            }
+            ss.add(traceEntry.getSignalStrengthSamples());
+            for (MACAddress mac : traceEntry.getSignalStrengthSamples().keySet())
+                aps.add(mac);
+        }
+        positions = positionIndex.keySet().toArray(new GeoPosition[positionIndex.size()]);
+
+        // Compile every sub-map
+        partitionPositions = new int[partitions.size()][];
+        partitionAverages = new double[partitions.size()][][];
+        for (int p = 0; p < partitions.size(); p++) {
+            LinkedHashMap<Integer, SignalStrengthSamples> partition = partitions.get(p);
+            partitionPositions[p] = new int[partition.size()];
+            partitionAverages[p] = new double[partition.size()][];
+            int i = 0;
+            for (Map.Entry<Integer, SignalStrengthSamples> fingerprint : partition.entrySet()) {
+                partitionPositions[p][i] = fingerprint.getKey();
+                partitionAverages[p][i] = toVector(fingerprint.getValue());
+                i++;
+            }
+        }
+    }
+
+    public double getStep() {
+        return step;
+    }
+
+    /**
+     * Returns the number of distinct positions over all sub-maps.
+     */
+    public int getPositionCount() {
+        return positions.length;
+    }
+
+    /**
+     * Returns the number of sub-maps, including the one for entries without orientation.
+     */
+    public int getPartitionCount() {
+        return partitionPositions.length;
+    }
+
+    /**
+     * Returns the number of fingerprints of the specified sub-map.
+     */
+    public int getFingerprintCount(int partition) {
+        return partitionPositions[partition].length;
+    }
+
+    /**
+     * Returns the sub-map of the specified orientation: the nearest quantized
+     * orientation, or the last sub-map if the orientation is NaN.
+     */
+    public int partitionOf(double orientation) {
+        if (Double.isNaN(orientation))
+            return orientations;
+        int partition = (int) Math.rint(orientation / step) % orientations;
+        return partition < 0 ? partition + orientations : partition;
+    }
+
+    /**
+     * Returns the sub-maps a query with the specified orientation is compared with.
+     * The sub-map without orientation is always included; a query without orientation
+     * is compared with all sub-maps.
+     */
+    public int[] route(double orientation) {
+        if (Double.isNaN(orientation)) {
+            int[] all = new int[orientations + 1];
+            for (int p = 0; p < all.length; p++)
+                all[p] = p;
+            return all;
+        }
+        double bins = orientation / step;
+        double offset = bins - Math.floor(bins);
+        if (offset <= 0.25 || offset >= 0.75)
+            return new int[] { partitionOf(orientation), orientations };
+        int lower = (int) Math.floor(bins) % orientations;
+        if (lower < 0) lower += orientations;
+        return new int[] { lower, (lower + 1) % orientations, orientations };
+    }
+
+    /**
+     * Estimates the position of the online fingerprint as the average of the k nearest
+     * positions (Euclidean distance over the access points heard in both fingerprints)
+     * within the sub-maps of its orientation.
+     *
+     * @param online  the online fingerprint
+     * @param orientation  the orientation of the online fingerprint
+     * @param k  the number of nearest neighbors
+     * @return  the estimation, or null if the sub-maps contain less than k positions
+     */
+    public GeoPosition estimate(SignalStrengthSamples online, double orientation, int k) {
+        return estimate(online, route(orientation), k, null);
+    }
+
+    // counts[0] receives the number of fingerprints compared with the query
+    GeoPosition estimate(SignalStrengthSamples online, int[] partitions, int k, int[] counts) {
+        double[] query = toVector(online);
+
+        // Best distance per position, as a position can be found in several sub-maps
+        double[] best = new double[positions.length];
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        int fingerprints = 0;
+        for (int partition : partitions) {
+            int[] fingerprintPositions = partitionPositions[partition];
+            double[][] averages = partitionAverages[partition];
+            for (int f = 0; f < averages.length; f++) {
+                double[] fingerprint = averages[f];
+                double sum = 0.0;
+                for (int ap = 0; ap < query.length; ap++) {
+                    double diff = query[ap] - fingerprint[ap];
+                    if (diff == diff) // both heard (not NaN)
+                        sum += diff * diff;
+                }
+                double dist = Math.sqrt(sum);
+                int position = fingerprintPositions[f];
+                if (dist < best[position])
+                    best[position] = dist;
+            }
+            fingerprints += averages.length;
+        }
+        if (counts != null)
+            counts[0] = fingerprints;
+
+        NearestNeighbors nearest = new NearestNeighbors(k);
+        for (int position = 0; position < best.length; position++)
+            nearest.offer(position, best[position]);
+        if (!nearest.isFull())
+            return null;
+        double x = 0.0;
+        double y = 0.0;
+        for (int i = 0; i < k; i++) {
+            x += positions[nearest.index(i)].getX();
+            y += positions[nearest.index(i)].getY();
+        }
+        return new GeoPosition(x/k, y/k);
+    }
+
+    private double[] toVector(SignalStrengthSamples ss) {
+        double[] vector = new double[aps.size()];
+        Arrays.fill(vector, Double.NaN);
+        for (MACAddress mac : ss.keySet()) {
+            int ap = aps.indexOf(mac);
+            if (ap >= 0)
+                vector[ap] = ss.getAverageSignalStrength(mac);
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Builds the radio map of <code>Positioning.getJointSS</code> on several threads. The
+ * trace entries are split into one chunk per thread; every thread accumulates the
+ * average, the sum of squared differences from the average and the number of samples
+ * per position and access point of its chunk in its own primitive arrays (Welford's
+ * update, like <code>StatisticsAccumulator</code>), without sharing anything. The chunks
+ * are merged into a <code>CompiledRadioMap</code> at the end (Chan's parallel update).
+ *
+ * The averages and variances are those of <code>getJointSS</code> up to rounding. The
+ * positions are keyed without orientation and appear in the order of their first trace
+ * entry.
+ *
+ * @author Pere
+ */
+public class ParallelRadioMapBuilder {
+
+    private static final LatencyHistogram BUILD_TIME = Metrics.histogram("radiomap.parallelBuild");
+
+    private int threads;
+
+    public ParallelRadioMapBuilder() {
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be >= 1");
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // Position without orientation, with a hash code that also spreads fractional coordinates
+    private static final class PositionKey {
+        final double x, y, z;
+
+        PositionKey(GeoPosition pos) {
+            // + 0.0 turns -0.0 into 0.0, which equalsWithoutOrientation treats as equal
+            this.x = pos.getX() + 0.0;
+            this.y = pos.getY() + 0.0;
+            this.z = pos.getZ() + 0.0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            PositionKey other = (PositionKey) o;
+            return x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = Double.doubleToLongBits(x) * 31 + Double.doubleToLongBits(y);
+            h = h * 31 + Double.doubleToLongBits(z);
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    // The statistics of one chunk, per local position (rows) and local access point (columns)
+    private static final class Accumulator {
+        final HashMap<PositionKey, Integer> positionIndex = new HashMap<>();
+        final ArrayList<PositionKey> positions = new ArrayList<>();
+        final HashMap<MACAddress, Integer> apIndex = new HashMap<>();
+        final ArrayList<MACAddress> aps = new ArrayList<>();
+        double[][] averages = new double[16][];
+        double[][] m2s = new double[16][]; // sums of the squared differences from the average
+        int[][] counts = new int[16][];
+
+        void add(TraceEntry traceEntry) {
+            PositionKey key = new PositionKey(traceEntry.getGeoPosition());
+            Integer position = positionIndex.get(key);
+            if (position == null) {
+                position = positions.size();
+                positionIndex.put(key, position);
+                positions.add(key);
+                if (position == averages.length) {
+                    averages = Arrays.copyOf(averages, 2 * position);
+                    m2s = Arrays.copyOf(m2s, 2 * position);
+                    counts = Arrays.copyOf(counts, 2 * position);
+                }
+                averages[position] = new double[Math.max(aps.size(), 8)];
+                m2s[position] = new double[averages[position].length];
+                counts[position] = new int[averages[position].length];
+            }
+            SignalStrengthSamples ss = traceEntry.getSignalStrengthSamples();
+            for (MACAddress mac : ss.keySet()) {
+                Integer ap = apIndex.get(mac);
+                if (ap == null) {
+                    ap = aps.size();
+                    apIndex.put(mac, ap);
+                    aps.add(mac);
+                }
+                if (ap >= averages[position].length) {
+                    int length = Math.max(2 * averages[position].length, aps.size());
+                    averages[position] = Arrays.copyOf(averages[position], length);
+                    m2s[position] = Arrays.copyOf(m2s[position], length);
+                    counts[position] = Arrays.copyOf(counts[position], length);
+                }
+                double[] average = averages[position];
+                double[] m2 = m2s[position];
+                int[] count = counts[position];
+                for (Iterator<Double> it = ss.iterator(mac); it.hasNext(); ) {
+                    double value = it.next();
+                    count[ap]++;
+                    double delta = value - average[ap];
+                    average[ap] += delta / count[ap];
+                    m2[ap] += delta * (value - average[ap]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the radio map of the specified offline trace entries.
+     *
+     * @param traceEntries  the offline trace entries
+     * @return  the radio map
+     * @throws IllegalArgumentException  if the radio map has more than
+     *         <code>Integer.MAX_VALUE</code> cells (positions times access points)
+     */
+    public CompiledRadioMap build(final List<TraceEntry> traceEntries) {
+        long start = System.nanoTime();
+        int chunks = Math.max(1, Math.min(threads, traceEntries.size()));
+        final int chunkSize = (traceEntries.size() + chunks - 1) / chunks;
+        List<Accumulator> accumulators = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(chunks);
+        try {
+            List<Future<Accumulator>> futures = new ArrayList<>();
+            for (int c = 0; c < chunks; c++) {
+                final int from = Math.min(c * chunkSize, traceEntries.size());
+                final int to = Math.min(from + chunkSize, traceEntries.size());
+                futures.add(executor.submit(() -> {
+                    Accumulator accumulator = new Accumulator();
+                    for (TraceEntry traceEntry : traceEntries.subList(from, to))
+                        accumulator.add(traceEntry);
+                    return accumulator;
+                }));
+            }
+            for (Future<Accumulator> future : futures)
+                accumulators.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the radio map", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Could not build the radio map", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        CompiledRadioMap radioMap = merge(accumulators);
+        BUILD_TIME.recordSince(start);
+        return radioMap;
+    }
+
+    private static CompiledRadioMap merge(List<Accumulator> accumulators) {
+        // Global dictionaries: positions in the order of the chunks, access points by MAC value
+        HashMap<PositionKey, Integer> positionIndex = new HashMap<>();
+        ArrayList<PositionKey> positionKeys = new ArrayList<>();
+        HashSet<MACAddress> seen = new HashSet<>();
+        for (Accumulator accumulator : accumulators) {
+            for (PositionKey key : accumulator.positions) {
+                if (!positionIndex.containsKey(key)) {
+                    positionIndex.put(key, positionKeys.size());
+                    positionKeys.add(key);
+                }
+            }
+            for (MACAddress mac : accumulator.aps)
+                seen.add(mac);
+        }
+        long[] macs = new long[seen.size()];
+        int a = 0;
+        for (MACAddress mac : seen)
+            macs[a++] = mac.toLong();
+        Arrays.sort(macs);
+        int width = macs.length;
+        int height = positionKeys.size();
+        long cells = (long) height * width;
+        if (cells > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Radio map too large: " + height + " positions, " + width + " access points");
+
+        double[] averages = new double[(int) cells];
+        double[] m2s = new double[(int) cells];
+        int[] counts = new int[(int) cells];
+        for (Accumulator accumulator : accumulators) {
+            int[] apMap = new int[accumulator.aps.size()];
+            for (int ap = 0; ap < apMap.length; ap++)
+                apMap[ap] = Arrays.binarySearch(macs, accumulator.aps.get(ap).toLong());
+            for (int p = 0; p < accumulator.positions.size(); p++) {
+                int base = positionIndex.get(accumulator.positions.get(p)) * width;
+                double[] average = accumulator.averages[p];
+                double[] m2 = accumulator.m2s[p];
+                int[] count = accumulator.counts[p];
+                for (int ap = 0; ap < Math.min(count.length, apMap.length); ap++) {
+                    if (count[ap] == 0)
+                        continue;
+                    int i = base + apMap[ap];
+                    int n = counts[i] + count[ap];
+                    double delta = average[ap] - averages[i];
+                    averages[i] += delta * count[ap] / n;
+                    m2s[i] += m2[ap] + delta * delta * ((double) counts[i] * count[ap] / n);
+                    counts[i] = n;
+                }
+            }
+        }
+
+        // m2s now hold the sample variances (0 for a single sample, like StatisticsAccumulator)
+        for (int i = 0; i < counts.length; i++) {
+            int n = counts[i];
+            if (n == 0) {
+                averages[i] = Double.NaN;
+                m2s[i] = Double.NaN;
+            } else {
+                m2s[i] = n == 1 ? 0.0 : m2s[i] / (n - 1);
+            }
+        }
+
+        GeoPosition[] positions = new GeoPosition[height];
+        for (int p = 0; p < height; p++) {
+            PositionKey key = positionKeys.get(p);
+            positions[p] = new GeoPosition(key.x, key.y, key.z);
+        }
+        return new CompiledRadioMap(positions, macs, averages, m2s, counts);
+    }
+}
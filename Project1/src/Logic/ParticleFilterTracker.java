@@ -0,0 +1,387 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Tracks devices with a particle filter, as an alternative to locating every scan on
+ * its own. Every device (<code>TraceEntry.getId()</code>) has a cloud of particles
+ * (position hypotheses). With every scan the particles
+ * <ol>
+ * <li>move by a random step of <code>speed * elapsed time</code>: the speed of the
+ * scan (<code>TraceEntry.getSpeed()</code>), or the default speed if it has none,</li>
+ * <li>are weighted by the likelihood of the scan at their nearest radio map position:
+ * a Gaussian per access point with the variance of the fingerprint (at least the
+ * signal deviation), -100 dBm where the position does not hear the access point.
+ * The likelihood is only evaluated at the positions the particles occupy, once per
+ * position and scan,</li>
+ * <li>are resampled when the weight is carried by less than half of them.</li>
+ * </ol>
+ * If the particles are far less likely than the true position would be, the track is
+ * lost and the particles are drawn again from the likelihood of the scan at every radio
+ * map position. At the true position every heard access point deviates by one standard
+ * deviation on average, so the fit of a particle is its likelihood relative to that
+ * expectation, and the track is lost when the weighted mean fit is below 1e-3.
+ * The estimation is the weighted mean of the particles.
+ *
+ * The particles of a device live in parallel primitive arrays. Scans of different
+ * devices are processed in parallel by <code>update(List)</code>, the scans of one
+ * device in order.
+ *
+ * @author Pere
+ */
+public class ParticleFilterTracker {
+
+    private static final LatencyHistogram UPDATE_TIME = Metrics.histogram("tracker.update");
+    private static final double MISSING_SIGNAL_STRENGTH = -100.0;
+    private static final double LOST_LIKELIHOOD = 1e-3;
+    private static final int RASTER_CELLS = 128; // per axis, for the nearest position lookup
+
+    private final RadioMapSnapshot radioMap;
+    private final int particles;
+    private double defaultSpeed = 1.5; // m/s, walking
+    private double signalDeviation = 4.0; // dB
+    private long seed = 0;
+    private final ConcurrentHashMap<MACAddress, Device> devices;
+    private final ThreadLocal<Scratch> scratch;
+
+    // Nearest radio map position per raster cell
+    private final double minX, minY, cellSize;
+    private final int columns, rows;
+    private final int[] nearest;
+
+    // The particles of one device
+    private static class Device {
+        final double[] x;
+        final double[] y;
+        final double[] weight;
+        final double[] newX; // for resampling
+        final double[] newY;
+        final int[] position; // nearest radio map position of every particle
+        final Random random;
+        long lastTimestamp;
+        boolean initialized;
+
+        Device(int particles, long seed) {
+            x = new double[particles];
+            y = new double[particles];
+            weight = new double[particles];
+            newX = new double[particles];
+            newY = new double[particles];
+            position = new int[particles];
+            random = new Random(seed);
+        }
+    }
+
+    // Likelihood of the current scan per radio map position, valid where evaluated == scans.
+    // One per thread: a scan is processed by a single thread, so the memory does not
+    // grow with the number of devices.
+    private static class Scratch {
+        final double[] logLikelihood;
+        final double[] misfit;
+        final int[] evaluated;
+        int scans;
+
+        Scratch(int positions) {
+            logLikelihood = new double[positions];
+            misfit = new double[positions];
+            evaluated = new int[positions];
+        }
+    }
+
+    public ParticleFilterTracker(RadioMapSnapshot radioMap, int particles) {
+        if (radioMap.getPositionCount() == 0)
+            throw new IllegalArgumentException("The radio map has no positions.");
+        if (particles < 1)
+            throw new IllegalArgumentException("particles must be >= 1");
+        this.radioMap = radioMap;
+        this.particles = particles;
+        this.devices = new ConcurrentHashMap<>();
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(radioMap.getPositionCount()));
+
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double lowX = Double.POSITIVE_INFINITY;
+        double lowY = Double.POSITIVE_INFINITY;
+        for (int p = 0; p < radioMap.getPositionCount(); p++) {
+            lowX = Math.min(lowX, radioMap.getX(p));
+            lowY = Math.min(lowY, radioMap.getY(p));
+            maxX = Math.max(maxX, radioMap.getX(p));
+            maxY = Math.max(maxY, radioMap.getY(p));
+        }
+        minX = lowX;
+        minY = lowY;
+        cellSize = Math.max(Math.max(maxX - minX, maxY - minY) / RASTER_CELLS, 0.1);
+        columns = (int) ((maxX - minX) / cellSize) + 1;
+        rows = (int) ((maxY - minY) / cellSize) + 1;
+        nearest = new int[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                double cx = minX + (column + 0.5) * cellSize;
+                double cy = minY + (row + 0.5) * cellSize;
+                int best = 0;
+                double bestDist = Double.POSITIVE_INFINITY;
+                for (int p = 0; p < radioMap.getPositionCount(); p++) {
+                    double dx = radioMap.getX(p) - cx;
+                    double dy = radioMap.getY(p) - cy;
+                    double dist = dx * dx + dy * dy;
+                    if (dist < bestDist) {
+                        best = p;
+                        bestDist = dist;
+                    }
+                }
+                nearest[row * columns + column] = best;
+            }
+        }
+    }
+
+    /**
+     * Sets the speed in m/s assumed for scans without speed.
+     */
+    public void setDefaultSpeed(double defaultSpeed) {
+        this.defaultSpeed = defaultSpeed;
+    }
+
+    /**
+     * Sets the minimum standard deviation of the signal strength in dB, used where the
+     * radio map has a smaller (or no) variance.
+     */
+    public void setSignalDeviation(double signalDeviation) {
+        if (!(signalDeviation > 0.0))
+            throw new IllegalArgumentException("signalDeviation must be > 0");
+        this.signalDeviation = signalDeviation;
+    }
+
+    /**
+     * Sets the seed of the random generators of new devices.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    /**
+     * Forgets a device, its next scan starts a new track.
+     */
+    public void remove(MACAddress device) {
+        devices.remove(device);
+    }
+
+    /**
+     * Updates the track of the device of a scan.
+     *
+     * @param scan  the scan
+     * @return  the estimated position of the device
+     */
+    public GeoPosition update(TraceEntry scan) {
+        long start = System.nanoTime();
+        Device device = devices.computeIfAbsent(scan.getId(),
+                id -> new Device(particles, seed ^ id.toLong()));
+        double[] vector = radioMap.toVector(scan.getSignalStrengthSamples());
+        GeoPosition estimation;
+        synchronized (device) {
+            estimation = update(device, scan, vector);
+        }
+        UPDATE_TIME.recordSince(start);
+        return estimation;
+    }
+
+    /**
+     * Updates the tracks of the devices of the scans, the devices in parallel and the
+     * scans of every device in the order of the list.
+     *
+     * @param scans  the scans
+     * @return  the estimated positions, in the order of the scans
+     */
+    public List<GeoPosition> update(List<TraceEntry> scans) {
+        LinkedHashMap<MACAddress, List<Integer>> byDevice = new LinkedHashMap<>();
+        for (int i = 0; i < scans.size(); i++)
+            byDevice.computeIfAbsent(scans.get(i).getId(), id -> new ArrayList<>()).add(i);
+        GeoPosition[] estimations = new GeoPosition[scans.size()];
+        byDevice.values().parallelStream().forEach(indices -> {
+            for (int i : indices)
+                estimations[i] = update(scans.get(i));
+        });
+        return Arrays.asList(estimations);
+    }
+
+    // Likelihood of the scan at every radio map position, scaled so the maximum is 1
+    private double[] likelihood(Scratch scratch, double[] vector) {
+        int positions = radioMap.getPositionCount();
+        double[] likelihood = new double[positions];
+        double max = Double.NEGATIVE_INFINITY;
+        for (int p = 0; p < positions; p++) {
+            likelihood[p] = logLikelihood(scratch, p, vector);
+            if (likelihood[p] > max)
+                max = likelihood[p];
+        }
+        for (int p = 0; p < positions; p++)
+            likelihood[p] = Math.exp(likelihood[p] - max);
+        return likelihood;
+    }
+
+    // Log-likelihood of the scan at a radio map position, evaluated once per scan
+    private double logLikelihood(Scratch scratch, int p, double[] vector) {
+        if (scratch.evaluated[p] == scratch.scans)
+            return scratch.logLikelihood[p];
+        int aps = radioMap.getAccessPointCount();
+        double minVariance = signalDeviation * signalDeviation;
+        double logLikelihood = 0.0;
+        double misfit = 0.0;
+        for (int ap = 0; ap < aps; ap++) {
+            double value = vector[ap];
+            if (value != value) // not heard by the scan
+                continue;
+            double average = radioMap.getAverage(p, ap);
+            double variance = minVariance;
+            if (average == average) {
+                double v = radioMap.getVariance(p, ap);
+                if (v > variance)
+                    variance = v;
+            } else {
+                average = MISSING_SIGNAL_STRENGTH;
+            }
+            double diff = value - average;
+            misfit += diff * diff / (2 * variance);
+            logLikelihood -= diff * diff / (2 * variance) + 0.5 * Math.log(variance);
+        }
+        scratch.logLikelihood[p] = logLikelihood;
+        scratch.misfit[p] = misfit;
+        scratch.evaluated[p] = scratch.scans;
+        return logLikelihood;
+    }
+
+    private GeoPosition update(Device device, TraceEntry scan, double[] vector) {
+        int n = particles;
+        double[] x = device.x;
+        double[] y = device.y;
+        double[] weight = device.weight;
+        int[] position = device.position;
+        Random random = device.random;
+        Scratch scratch = this.scratch.get();
+        if (scratch.scans == Integer.MAX_VALUE) { // about to wrap around: forget what was evaluated
+            Arrays.fill(scratch.evaluated, 0);
+            scratch.scans = 0;
+        }
+        scratch.scans++;
+        int heard = 0;
+        for (double value : vector)
+            if (value == value)
+                heard++;
+
+        double sum = 0.0;
+        if (device.initialized) {
+            // Motion
+            double speed = Double.isNaN(scan.getSpeed()) ? defaultSpeed : scan.getSpeed();
+            double seconds = Math.max(scan.getTimestamp() - device.lastTimestamp, 0) / 1000.0;
+            double step = Math.max(speed * seconds, cellSize) / Math.sqrt(2);
+            double maxX = minX + columns * cellSize;
+            double maxY = minY + rows * cellSize;
+            for (int i = 0; i < n; i++) {
+                x[i] = Math.min(Math.max(x[i] + step * random.nextGaussian(), minX), maxX);
+                y[i] = Math.min(Math.max(y[i] + step * random.nextGaussian(), minY), maxY);
+            }
+            // Weighting, relative to the most likely particle. The weights are still
+            // normalized from the last scan, so fit is the weighted mean fit.
+            // fit: exp(-sum z*z/2) relative to exp(-heard/2), its expectation at the true position
+            double max = Double.NEGATIVE_INFINITY;
+            double fit = 0.0;
+            for (int i = 0; i < n; i++) {
+                int p = nearest(x[i], y[i]);
+                position[i] = p;
+                double logLikelihood = logLikelihood(scratch, p, vector);
+                if (logLikelihood > max)
+                    max = logLikelihood;
+                fit += weight[i] * Math.exp(0.5 * heard - scratch.misfit[p]);
+            }
+            for (int i = 0; i < n; i++) {
+                weight[i] *= Math.exp(scratch.logLikelihood[position[i]] - max);
+                sum += weight[i];
+            }
+            if (!(fit > LOST_LIKELIHOOD))
+                sum = 0.0;
+        }
+        if (!(sum > 0.0)) {
+            // New track, or lost: draw the particles from the likelihood of the scan
+            initialize(device, likelihood(scratch, vector));
+            sum = 1.0;
+        }
+        device.initialized = true;
+        device.lastTimestamp = scan.getTimestamp();
+
+        // Normalization and estimation
+        double estimateX = 0.0;
+        double estimateY = 0.0;
+        double squares = 0.0;
+        for (int i = 0; i < n; i++) {
+            weight[i] /= sum;
+            estimateX += weight[i] * x[i];
+            estimateY += weight[i] * y[i];
+            squares += weight[i] * weight[i];
+        }
+        // Resampling (systematic) when the effective number of particles is below n / 2
+        if (1.0 / squares < n / 2.0)
+            resample(device);
+        return new GeoPosition(estimateX, estimateY);
+    }
+
+    private void initialize(Device device, double[] likelihood) {
+        double total = 0.0;
+        for (double l : likelihood)
+            total += l;
+        double u = device.random.nextDouble() * total / particles;
+        double cumulative = likelihood[0];
+        int p = 0;
+        for (int i = 0; i < particles; i++) {
+            while (u > cumulative && p < likelihood.length - 1)
+                cumulative += likelihood[++p];
+            device.x[i] = radioMap.getX(p) + cellSize * (device.random.nextDouble() - 0.5);
+            device.y[i] = radioMap.getY(p) + cellSize * (device.random.nextDouble() - 0.5);
+            u += total / particles;
+        }
+        Arrays.fill(device.weight, 1.0 / particles);
+    }
+
+    private void resample(Device device) {
+        int n = particles;
+        double[] weight = device.weight;
+        double u = device.random.nextDouble() / n;
+        double cumulative = weight[0];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            while (u > cumulative && j < n - 1)
+                cumulative += weight[++j];
+            device.newX[i] = device.x[j];
+            device.newY[i] = device.y[j];
+            u += 1.0 / n;
+        }
+        System.arraycopy(device.newX, 0, device.x, 0, n);
+        System.arraycopy(device.newY, 0, device.y, 0, n);
+        Arrays.fill(weight, 1.0 / n);
+    }
+
+    private int nearest(double x, double y) {
+        int column = Math.min((int) ((x - minX) / cellSize), columns - 1);
+        int row = Math.min((int) ((y - minY) / cellSize), rows - 1);
+        return nearest[row * columns + column];
+    }
+}
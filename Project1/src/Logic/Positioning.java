@@ -14,10 +14,18 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.pi4.locutil.GeoPosition;
 import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.io.RadioMapSnapshot;
 import org.pi4.locutil.io.TraceGenerator;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.metrics.QueryEvent;
+import org.pi4.locutil.metrics.RadioMapEvent;
 import org.pi4.locutil.trace.Parser;
 import org.pi4.locutil.trace.SignalStrengthSamples;
 import org.pi4.locutil.trace.TraceEntry;
@@ -40,15 +48,56 @@ public class Positioning {
     private static final int OFFLINE_SAMPLE_SIZE = 10;
     private static final int ONLINE_SAMPLE_SIZE = 5;
     
+    // Orientation precision of the online trace, as read by TraceGenerator
+    private static final double ONLINE_PRECISION = 5.0;
+    
+    // Orientation step of the offline trace (TraceGenerator reads it with a precision of 45 degrees)
+    private static final double ORIENTATION_STEP = 45.0;
+    
+    // Stage latencies and counters, see Metrics
+    private static final LatencyHistogram EXPERIMENT_TIME = Metrics.histogram("positioning.experiment");
+    private static final LatencyHistogram RADIOMAP_TIME = Metrics.histogram("positioning.radiomap");
+    private static final LatencyHistogram QUERY_TIME = Metrics.histogram("positioning.query");
+    private static final LongAdder QUERIES = Metrics.counter("positioning.queries");
+    private static final LongAdder FINGERPRINTS_SCANNED = Metrics.counter("positioning.fingerprints_scanned");
+    private static final LongAdder CANDIDATES_PRUNED = Metrics.counter("positioning.candidates_pruned");
+    
     private TraceGenerator tg;
     
     
     public Positioning() throws IOException {
-        Parser offlineParser = new Parser(new File(OFFLINE_PATH));
-        Parser onlineParser = new Parser(new File(ONLINE_PATH));
-        tg = new TraceGenerator(offlineParser,onlineParser,OFFLINE_SAMPLE_SIZE,ONLINE_SAMPLE_SIZE);
+        this(new File(OFFLINE_PATH), new File(ONLINE_PATH));
     }
     
+    public Positioning(File offlineFile, File onlineFile) throws IOException {
+        Parser offlineParser = new Parser(offlineFile);
+        Parser onlineParser = new Parser(onlineFile);
+        tg = new TraceGenerator(offlineParser,onlineParser,OFFLINE_SAMPLE_SIZE,ONLINE_SAMPLE_SIZE);
+    }
+
+    /*
+    Works on the traces already loaded by another generator (see TraceGenerator(TraceGenerator)),
+    so several Positioning objects can share one parse of the same files.
+    */
+    public Positioning(TraceGenerator traces) {
+        tg = new TraceGenerator(traces);
+    }
+
+    /*
+    Loads the offline and online traces with the sample sizes used by the experiments,
+    to be shared by several Positioning objects.
+    */
+    public static TraceGenerator loadTraces(File offlineFile, File onlineFile) throws IOException {
+        return new TraceGenerator(new Parser(offlineFile), new Parser(onlineFile), OFFLINE_SAMPLE_SIZE, ONLINE_SAMPLE_SIZE);
+    }
+
+    /*
+    Same as above, but both files are parsed concurrently on the executor (see TraceGenerator.load).
+    */
+    public static CompletableFuture<TraceGenerator> loadTraces(File offlineFile, File onlineFile, Executor executor) {
+        return TraceGenerator.load(new Parser(offlineFile), new Parser(onlineFile), OFFLINE_SAMPLE_SIZE, ONLINE_SAMPLE_SIZE, executor);
+    }
+
     /*
     Empirical_FP_KNN implements fingerprinting-based k-nearest neighbors. 
     Its outcome will be written to disk with a line for each estimated position along with the 
@@ -57,8 +106,22 @@ public class Positioning {
     file parameter indicates the file to write the output to.
     */
     public void empirical_FP_KNN(int k, File file) throws FileNotFoundException {
+        HashMap<GeoPosition, GeoPosition> outputRadioMap = new HashMap<>();
+        empirical_FP_KNN(k, outputRadioMap::put);
+        FileParser parser = new FileParser();
+        parser.writeToFile(outputRadioMap, file);
+    }
+    
+    /*
+    Same as above, but every estimated position is passed to the sink (along with its 
+    true position) as soon as it has been computed.
+    */
+    public void empirical_FP_KNN(int k, EstimateSink sink) {
+        
+        long experimentStart = System.nanoTime();
         
         // Getting offline and online trace entries
+        tg.setDiscardOrientationInFingerprints(true);
         tg.generate();
         List<TraceEntry> offlineTraceEntries = tg.getOffline();
 	    List<TraceEntry> onlineTraceEntries = tg.getOnline();
@@ -71,9 +134,10 @@ public class Positioning {
         // Compute the k-nearest neighbors
         // For each position in the online trace we have to compare such position with all the offline 
         // measurements. Therefore, the best position match will be computed to get the distance.
-        HashMap<GeoPosition, GeoPosition> outputRadioMap = new HashMap();
-        
         for (HashMap.Entry<GeoPosition, SignalStrengthSamples> onlinePos : jointSSOnline.entrySet()) {
+            long queryStart = System.nanoTime();
+            QueryEvent event = new QueryEvent();
+            event.begin();
             
             ArrayList<Neighbor> neighbors = new ArrayList();
             
@@ -97,11 +161,162 @@ public class Positioning {
             }
             GeoPosition estimation = new GeoPosition(x/k, y/k);
             
-            outputRadioMap.put(onlinePos.getKey(), estimation);
+            recordQuery("empirical", neighbors.size(), k, queryStart, event);
+            
+            sink.add(onlinePos.getKey(), estimation);
+        }
+        EXPERIMENT_TIME.recordSince(experimentStart);
+        
+    }
+    
+    /*
+    Builds the radio map of an offline sample the same way empirical_FP_KNN does and 
+    stores it as a snapshot file. The static empirical_FP_KNN(k, RadioMapSnapshot, File, sink)
+    maps it and only parses the online trace, so the offline trace is never read again.
+    */
+    public void writeRadioMap(File file) throws IOException {
+        tg.setDiscardOrientationInFingerprints(true);
+        tg.generate();
+        RadioMapSnapshot.write(getJointSS(tg.getOffline()), file);
+    }
+    
+    /*
+    Same as empirical_FP_KNN, but the offline radio map is read from a snapshot file 
+    (see writeRadioMap and RadioMapSnapshot.open); only the online set is generated.
+    */
+    public void empirical_FP_KNN(int k, RadioMapSnapshot radioMap, EstimateSink sink) {
+        long experimentStart = System.nanoTime();
+        
+        tg.setDiscardOrientationInFingerprints(true);
+        tg.generate();
+        locate(k, radioMap, getJointSS(tg.getOnline()), sink);
+        EXPERIMENT_TIME.recordSince(experimentStart);
+    }
+    
+    /*
+    Positioning on a snapshot without a Positioning object: only the online trace is
+    parsed, and all the scans of an online position are joined into its query (instead
+    of a random sample of ONLINE_SAMPLE_SIZE scans).
+    */
+    public static void empirical_FP_KNN(int k, RadioMapSnapshot radioMap, File onlineFile, EstimateSink sink) throws IOException {
+        long experimentStart = System.nanoTime();
+        
+        Parser onlineParser = new Parser(onlineFile);
+        onlineParser.setPrecision(ONLINE_PRECISION);
+        locate(k, radioMap, joinSS(onlineParser.parse()), sink);
+        EXPERIMENT_TIME.recordSince(experimentStart);
+    }
+    
+    private static void locate(int k, RadioMapSnapshot radioMap, HashMap<GeoPosition, SignalStrengthSamples> jointSSOnline, EstimateSink sink) {
+        if (k > radioMap.getPositionCount())
+            throw new IllegalArgumentException("k must be smaller than the number of neighbors.");
+        
+        int positions = radioMap.getPositionCount();
+        NearestNeighbors nearest = new NearestNeighbors(k);
+        for (HashMap.Entry<GeoPosition, SignalStrengthSamples> onlinePos : jointSSOnline.entrySet()) {
+            long queryStart = System.nanoTime();
+            QueryEvent event = new QueryEvent();
+            event.begin();
+            
+            // Keeps the k smallest distances while scanning, ties in position order
+            double[] vector = radioMap.toVector(onlinePos.getValue());
+            nearest.clear();
+            for (int p = 0; p < positions; p++)
+                nearest.offer(p, radioMap.distance(p, vector));
+            double x = 0.0;
+            double y = 0.0;
+            for (int i = 0; i < k; i++) {
+                x += radioMap.getX(nearest.index(i));
+                y += radioMap.getY(nearest.index(i));
+            }
+            GeoPosition estimation = new GeoPosition(x/k, y/k);
+            
+            recordQuery("snapshot", positions, k, queryStart, event);
+            
+            sink.add(onlinePos.getKey(), estimation);
+        }
+    }
+    
+    /*
+    Same as empirical_FP_KNN, but the offline radio map is a compiled one (which several
+    experiments may share, see ParallelRadioMapBuilder) and the neighbors are chosen with
+    the distance metric of the engine; only the online set is generated.
+    */
+    public void empirical_FP_KNN(KNNEngine engine, EstimateSink sink) {
+        long experimentStart = System.nanoTime();
+
+        tg.setDiscardOrientationInFingerprints(true);
+        tg.generate();
+        HashMap<GeoPosition, SignalStrengthSamples> jointSSOnline = getJointSS(tg.getOnline());
+
+        int positions = engine.getRadioMap().getPositionCount();
+        for (HashMap.Entry<GeoPosition, SignalStrengthSamples> onlinePos : jointSSOnline.entrySet()) {
+            long queryStart = System.nanoTime();
+            QueryEvent event = new QueryEvent();
+            event.begin();
+
+            GeoPosition estimation = engine.locate(onlinePos.getValue());
+
+            recordQuery(engine.getMetric().getName(), positions, engine.getK(), queryStart, event);
+
+            sink.add(onlinePos.getKey(), estimation);
         }
+        EXPERIMENT_TIME.recordSince(experimentStart);
+    }
+
+    /*
+    Orientation-aware variant of empirical_FP_KNN: the offline fingerprints keep their
+    orientation and are split into one radio map per orientation (see OrientationRadioMap), 
+    and every online position is only compared with the fingerprints of its own orientation.
+    */
+    public void empirical_FP_KNN_Orientation(int k, File file) throws FileNotFoundException {
+        HashMap<GeoPosition, GeoPosition> outputRadioMap = new HashMap<>();
+        empirical_FP_KNN_Orientation(k, outputRadioMap::put);
         FileParser parser = new FileParser();
         parser.writeToFile(outputRadioMap, file);
+    }
+    
+    public void empirical_FP_KNN_Orientation(int k, EstimateSink sink) {
+        long experimentStart = System.nanoTime();
         
+        // Getting offline and online trace entries with their orientations
+        tg.setDiscardOrientationInFingerprints(false);
+        tg.generate();
+        List<TraceEntry> offlineTraceEntries = tg.getOffline();
+        List<TraceEntry> onlineTraceEntries = tg.getOnline();
+        
+        long start = System.nanoTime();
+        RadioMapEvent radioMapEvent = new RadioMapEvent();
+        radioMapEvent.begin();
+        OrientationRadioMap radioMap = new OrientationRadioMap(offlineTraceEntries, ORIENTATION_STEP);
+        RADIOMAP_TIME.recordSince(start);
+        radioMapEvent.end();
+        if (radioMapEvent.shouldCommit()) {
+            radioMapEvent.method = "OrientationRadioMap";
+            radioMapEvent.entries = offlineTraceEntries.size();
+            radioMapEvent.positions = radioMap.getPositionCount();
+            radioMapEvent.commit();
+        }
+        // The online set holds one orientation per position, so the key of every
+        // joint fingerprint carries the orientation it was measured with.
+        HashMap<GeoPosition, SignalStrengthSamples> jointSSOnline = getJointSS(onlineTraceEntries);
+        
+        int[] fingerprints = new int[1];
+        for (HashMap.Entry<GeoPosition, SignalStrengthSamples> onlinePos : jointSSOnline.entrySet()) {
+            long queryStart = System.nanoTime();
+            QueryEvent event = new QueryEvent();
+            event.begin();
+            
+            int[] partitions = radioMap.route(onlinePos.getKey().getOrientation());
+            GeoPosition estimation = radioMap.estimate(onlinePos.getValue(), partitions, k, fingerprints);
+            if (estimation == null)
+                throw new IllegalArgumentException("k must be smaller than the number of neighbors.");
+            
+            recordQuery("orientation", fingerprints[0], k, queryStart, event);
+            
+            sink.add(onlinePos.getKey(), estimation);
+        }
+        EXPERIMENT_TIME.recordSince(experimentStart);
     }
     
     /*
@@ -113,8 +328,21 @@ public class Positioning {
     
     
     public void model_FP_KNN(File file, int k, double pd0, double n, double d0) throws FileNotFoundException {
-        //To be implemented
+        HashMap<GeoPosition, GeoPosition> outputRadioMap = new HashMap<>();
+        model_FP_KNN(outputRadioMap::put, k, pd0, n, d0);
+        FileParser parser = new FileParser();
+        parser.writeToFile(outputRadioMap, file);
+    }
+    
+    /*
+    Same as above, but every estimated position is passed to the sink (along with its 
+    true position) as soon as it has been computed.
+    */
+    public void model_FP_KNN(EstimateSink sink, int k, double pd0, double n, double d0) {
+        long experimentStart = System.nanoTime();
+        
         // Getting offline and online trace entries
+        tg.setDiscardOrientationInFingerprints(true);
         tg.generate();
         List<TraceEntry> offlineTraceEntries = tg.getOffline();
 	List<TraceEntry> onlineTraceEntries = tg.getOnline();
@@ -125,9 +353,10 @@ public class Positioning {
         
         // For each position in the online trace we have to compare such position with all the offline 
         // measurements. Therefore, the best position match will be computed to get the distance.
-        HashMap<GeoPosition, GeoPosition> outputRadioMap = new HashMap();
-        
         for (HashMap.Entry<GeoPosition, SignalStrengthSamples> onlinePos : jointSSOnline.entrySet()) {
+            long queryStart = System.nanoTime();
+            QueryEvent event = new QueryEvent();
+            event.begin();
             
             ArrayList<Neighbor> neighbors = new ArrayList();
             List<MACAddress> aps = onlinePos.getValue().getSortedAccessPoints();
@@ -166,11 +395,11 @@ public class Positioning {
             }
             GeoPosition estimation = new GeoPosition(x/k, y/k);
             
-            outputRadioMap.put(onlinePos.getKey(), estimation);
+            recordQuery("model", neighbors.size(), k, queryStart, event);
+            
+            sink.add(onlinePos.getKey(), estimation);
         }
-        
-        FileParser parser = new FileParser();
-        parser.writeToFile(outputRadioMap, file);
+        EXPERIMENT_TIME.recordSince(experimentStart);
         
     }
     
@@ -182,7 +411,32 @@ public class Positioning {
     the form E = (x,y,z,s1,s2,...,sn), where n is the number of access points. In other words, 
     E = (geoPosition, SignalStrengthListOfSuchPosition).
     */
+    /*
+    Records a query that started at start (System.nanoTime()) and scanned the specified
+    number of fingerprints for the k nearest: its latency, the counters and its event.
+    */
+    private static void recordQuery(String method, int scanned, int k, long start, QueryEvent event) {
+        QUERY_TIME.recordSince(start);
+        Metrics.count(QUERIES, 1);
+        Metrics.count(FINGERPRINTS_SCANNED, scanned);
+        Metrics.count(CANDIDATES_PRUNED, Math.max(0, scanned - k));
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.candidates = scanned;
+            event.k = k;
+            event.commit();
+        }
+    }
+    
     public HashMap<GeoPosition, SignalStrengthSamples> getJointSS (List<TraceEntry> traceEntries) {
+        return joinSS(traceEntries);
+    }
+    
+    private static HashMap<GeoPosition, SignalStrengthSamples> joinSS(List<TraceEntry> traceEntries) {
+        long start = System.nanoTime();
+        RadioMapEvent event = new RadioMapEvent();
+        event.begin();
         
         HashMap<GeoPosition, SignalStrengthSamples> jointSS = new HashMap();
         
@@ -196,15 +450,30 @@ public class Positioning {
                     break;
                 }
             }
-            // If it isn't in the HashMap, we add it into it
+            // If it isn't in the HashMap, we add it into it (as a copy, so that the trace entries 
+            // are not modified and the radio map can be built again from the same entries)
             if (!inHashMap) {
-                jointSS.put(traceEntry.getGeoPosition(),traceEntry.getSignalStrengthSamples());
+                SignalStrengthSamples ss = new SignalStrengthSamples();
+                ss.add(traceEntry.getSignalStrengthSamples());
+                jointSS.put(traceEntry.getGeoPosition(),ss);
             }
         }
+        RADIOMAP_TIME.recordSince(start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = "getJointSS";
+            event.entries = traceEntries.size();
+            event.positions = jointSS.size();
+            event.commit();
+        }
         return jointSS;
     }
     
     public HashMap<GeoPosition, SignalStrengthSamples> getJointSSRadar(List<TraceEntry> traceEntries, double pd0, double n, double d0) {
+        long start = System.nanoTime();
+        RadioMapEvent event = new RadioMapEvent();
+        event.begin();
+        
         // Model based method of RADAR without WAF
         // P(d)[dBm] = P(d0)[dBm] - 10 * n * log(d/d0)
 
@@ -228,9 +497,19 @@ public class Positioning {
                 }
             }
             if (!inHashMap) {
-                output.put(traceEntry.getGeoPosition(), traceEntry.getSignalStrengthSamples());
+                SignalStrengthSamples copy = new SignalStrengthSamples();
+                copy.add(traceEntry.getSignalStrengthSamples());
+                output.put(traceEntry.getGeoPosition(), copy);
             }
         }
+        RADIOMAP_TIME.recordSince(start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = "getJointSSRadar";
+            event.entries = traceEntries.size();
+            event.positions = output.size();
+            event.commit();
+        }
         return output;
     }
     
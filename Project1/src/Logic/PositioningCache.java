@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * Cache of estimations in front of a positioning engine, for devices that send nearly
+ * the same scan again and again. The key of a scan is its quantized fingerprint: the
+ * access points, each with its average signal strength rounded to a multiple of the
+ * step, hashed into a <code>long</code>. The hashes of the access points are summed,
+ * so the key does not depend on their order; two access points with nearly the same
+ * signal strength that swap places in a repeated scan still give the same key. A
+ * repeated scan costs one hash lookup instead of a search of the radio map.
+ *
+ * The cache holds at most <code>capacity</code> estimations and evicts the least
+ * recently used one. Only the 64 bit hash is stored, so two different fingerprints
+ * share an entry only if their hashes collide.
+ *
+ * @author Pere
+ */
+public class PositioningCache {
+
+    private static final LongAdder HITS = Metrics.counter("cache.hits");
+    private static final LongAdder MISSES = Metrics.counter("cache.misses");
+
+    private final double step;
+    private final LinkedHashMap<Long, GeoPosition> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity  the maximum number of estimations
+     * @param step  the quantization step of the signal strengths in dB
+     */
+    public PositioningCache(final int capacity, double step) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be >= 1");
+        if (!(step > 0.0))
+            throw new IllegalArgumentException("step must be > 0");
+        this.step = step;
+        this.entries = new LinkedHashMap<Long, GeoPosition>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, GeoPosition> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public double getStep() {
+        return step;
+    }
+
+    /**
+     * Returns the key of a scan: the hash of its quantized fingerprint.
+     */
+    public long key(SignalStrengthSamples ss) {
+        long sum = 0;
+        for (MACAddress mac : ss.keySet())
+            sum += mix(mix(mac.toLong()) ^ Math.round(ss.getAverageSignalStrength(mac) / step));
+        return mix(sum ^ 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Returns the cached estimation of a key.
+     *
+     * @return  the estimation, or null if the key is not cached
+     */
+    public GeoPosition get(long key) {
+        GeoPosition estimation;
+        synchronized (entries) {
+            estimation = entries.get(key);
+        }
+        if (estimation != null) {
+            hits.increment();
+            Metrics.count(HITS, 1);
+        } else {
+            misses.increment();
+            Metrics.count(MISSES, 1);
+        }
+        return estimation;
+    }
+
+    public void put(long key, GeoPosition estimation) {
+        synchronized (entries) {
+            entries.put(key, estimation);
+        }
+    }
+
+    /**
+     * Returns the cached estimation of a scan, or estimates and caches it.
+     *
+     * @param ss  the scan
+     * @param engine  estimates the position of a scan on a cache miss
+     * @return  the estimation
+     */
+    public GeoPosition get(SignalStrengthSamples ss, Function<SignalStrengthSamples, GeoPosition> engine) {
+        long key = key(ss);
+        GeoPosition estimation = get(key);
+        if (estimation == null) {
+            estimation = engine.apply(ss);
+            if (estimation != null)
+                put(key, estimation);
+        }
+        return estimation;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Finalizer of SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.trace.Parser;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Local positioning server on a radio map snapshot. Clients connect over TCP and
+ * send one scan per line, in the format of the trace files (the position is not
+ * needed), e.g.
+ * <pre>
+ * t=1187915994709;id=00:02:2D:21:0F:33;00:14:BF:00:00:01=-55,2.412E9,3,-97
+ * </pre>
+ * and receive one line per scan: the estimated position <code>x,y</code>, or
+ * <code>ERR</code> and a message. The line <code>STATS</code> returns the latency
+ * percentiles and counters (see <code>Metrics.toJSON</code>), <code>QUIT</code> closes
+ * the connection.
+ *
+ * Every connection is served by its own pooled thread. The scans of all connections
+ * are collected in micro-batches (up to <code>maxBatchSize</code> scans, waiting at
+ * most <code>maxBatchDelay</code> after the first one) and located by a single thread
+ * in one pass over the radio map, so every fingerprint is read once per batch
+ * instead of once per scan.
+ *
+ * @author Pere
+ */
+public class PositioningServer implements Closeable {
+
+    private static final LatencyHistogram REQUEST_TIME = Metrics.histogram("server.request");
+    private static final LatencyHistogram BATCH_TIME = Metrics.histogram("server.batch");
+    private static final LongAdder REQUESTS = Metrics.counter("server.requests");
+    private static final LongAdder BATCHES = Metrics.counter("server.batches");
+    private static final LongAdder ERRORS = Metrics.counter("server.errors");
+    private static final LongAdder ACCEPT_ERRORS = Metrics.counter("server.accept_errors");
+
+    private final RadioMapSnapshot radioMap;
+    private final int k;
+    private int maxBatchSize = 64;
+    private long maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(200);
+    private final BlockingQueue<Request> queue;
+    private volatile PositioningCache cache;
+    private ServerSocket serverSocket;
+    private ExecutorService connections;
+    private Thread acceptor;
+    private Thread batcher;
+    private volatile boolean running;
+
+    // A scan waiting for its batch
+    private static class Request {
+        final double[] vector;
+        final CompletableFuture<GeoPosition> result = new CompletableFuture<>();
+
+        Request(double[] vector) {
+            this.vector = vector;
+        }
+    }
+
+    public PositioningServer(RadioMapSnapshot radioMap, int k) {
+        if (k < 1 || k > radioMap.getPositionCount())
+            throw new IllegalArgumentException("k must be between 1 and the number of positions.");
+        this.radioMap = radioMap;
+        this.k = k;
+        this.queue = new LinkedBlockingQueue<>();
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be >= 1");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setMaxBatchDelay(long delay, TimeUnit unit) {
+        this.maxBatchDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Sets a cache for the estimations, so repeated scans skip the radio map.
+     *
+     * @param cache  the cache, or null for none
+     */
+    public void setCache(PositioningCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts listening on the specified port of the loopback interface.
+     *
+     * @param port  the port, 0 for any free port (see <code>getPort</code>)
+     * @throws IOException  if the port cannot be opened
+     */
+    public synchronized void start(int port) throws IOException {
+        if (running)
+            throw new IllegalStateException("Server already started.");
+        serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        running = true;
+        connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "positioning-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        batcher = new Thread(this::batchLoop, "positioning-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+        // Daemon like the other threads: an open server does not keep the JVM alive, see join
+        acceptor = new Thread(this::acceptLoop, "positioning-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits until the server is closed.
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!running)
+            return;
+        running = false;
+        serverSocket.close();
+        connections.shutdownNow();
+        batcher.interrupt();
+        Request request;
+        while ((request = queue.poll()) != null)
+            request.result.completeExceptionally(new IOException("Server closed."));
+    }
+
+    /**
+     * Locates a scan through the batch path, as a connection does.
+     *
+     * @param entry  the scan
+     * @return  the estimated position
+     */
+    public GeoPosition locate(TraceEntry entry) throws IOException, InterruptedException {
+        if (!running)
+            throw new IOException("Server closed.");
+        PositioningCache cache = this.cache;
+        long key = 0;
+        if (cache != null) {
+            key = cache.key(entry.getSignalStrengthSamples());
+            GeoPosition estimation = cache.get(key);
+            if (estimation != null)
+                return estimation;
+        }
+        Request request = new Request(radioMap.toVector(entry.getSignalStrengthSamples()));
+        queue.put(request);
+        if (!running && queue.remove(request))
+            throw new IOException("Server closed.");
+        GeoPosition estimation;
+        try {
+            estimation = request.result.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        if (cache != null)
+            cache.put(key, estimation);
+        return estimation;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException e) {
+                // A failed accept only concerns that client, which sees its connection fail
+                if (running)
+                    Metrics.count(ACCEPT_ERRORS, 1);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Parser parser = new Parser();
+        parser.setPrecision(1.0);
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+            String line;
+            while ((line = in.readLine()) != null) {
+                long start = System.nanoTime();
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                if (line.equals("QUIT"))
+                    break;
+                if (line.equals("STATS")) {
+                    out.write(Metrics.toJSON() + "\n");
+                    out.flush();
+                    continue;
+                }
+                String response;
+                try {
+                    TraceEntry entry = parser.parseLine(line);
+                    if (entry == null || entry.getSignalStrengthSamples().size() == 0) {
+                        response = "ERR no access points";
+                    } else {
+                        GeoPosition estimation = locate(entry);
+                        response = estimation.getX() + "," + estimation.getY();
+                    }
+                } catch (IOException e) {
+                    Metrics.count(ERRORS, 1);
+                    response = "ERR " + e.getMessage();
+                } catch (RuntimeException e) {
+                    Metrics.count(ERRORS, 1);
+                    response = "ERR " + e;
+                }
+                out.write(response + "\n");
+                out.flush();
+                REQUEST_TIME.recordSince(start);
+                Metrics.count(REQUESTS, 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // connection lost
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+
+    private void batchLoop() {
+        ArrayList<Request> batch = new ArrayList<>();
+        ArrayList<NearestNeighbors> nearest = new ArrayList<>();
+        try {
+            while (running) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + maxBatchDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                while (nearest.size() < batch.size())
+                    nearest.add(new NearestNeighbors(k));
+                locate(batch, nearest);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+        for (Request request : batch)
+            request.result.completeExceptionally(new IOException("Server closed."));
+    }
+
+    // Batch k-NN: one pass over the radio map for all scans of the batch
+    private void locate(ArrayList<Request> batch, ArrayList<NearestNeighbors> nearest) {
+        long start = System.nanoTime();
+        try {
+            int size = batch.size();
+            for (int r = 0; r < size; r++)
+                nearest.get(r).clear();
+            for (int p = 0; p < radioMap.getPositionCount(); p++) {
+                for (int r = 0; r < size; r++)
+                    nearest.get(r).offer(p, radioMap.distance(p, batch.get(r).vector));
+            }
+            for (int r = 0; r < size; r++) {
+                NearestNeighbors n = nearest.get(r);
+                double x = 0.0;
+                double y = 0.0;
+                for (int i = 0; i < n.size(); i++) {
+                    x += radioMap.getX(n.index(i));
+                    y += radioMap.getY(n.index(i));
+                }
+                batch.get(r).result.complete(new GeoPosition(x/n.size(), y/n.size()));
+            }
+        } catch (RuntimeException e) {
+            for (Request request : batch)
+                request.result.completeExceptionally(e);
+        }
+        BATCH_TIME.recordSince(start);
+        Metrics.count(BATCHES, 1);
+    }
+
+    /**
+     * Starts a server on a radio map snapshot (see <code>Positioning.writeRadioMap</code>).
+     *
+     * Usage: PositioningServer snapshot port [k [cacheSize]]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: PositioningServer snapshot port [k [cacheSize]]");
+            System.exit(1);
+        }
+        RadioMapSnapshot radioMap = RadioMapSnapshot.open(new File(args[0]));
+        radioMap.load();
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        PositioningServer server = new PositioningServer(radioMap, k);
+        if (args.length > 3)
+            server.setCache(new PositioningCache(Integer.parseInt(args[3]), 1.0));
+        server.start(Integer.parseInt(args[1]));
+        System.out.println("PositioningServer: " + radioMap.getPositionCount() + " positions, listening on port " + server.getPort() + ".");
+        server.join();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.io.TraceSynthesizer;
+import org.pi4.locutil.trace.Parser;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Loopback self-check of the <code>PositioningServer</code> (the project has no test
+ * tree): serves a synthetic radio map on a free port of the loopback interface, lets
+ * several clients send scans concurrently and checks every answer against
+ * <code>KNNEngine</code> on the same radio map, then checks <code>STATS</code>,
+ * <code>ERR</code> answers and <code>locate</code> after <code>close</code>.
+ * Exits with status 1 on the first failure.
+ *
+ * Usage: PositioningServerCheck [clients [scansPerClient]]
+ *
+ * @author Pere
+ */
+public class PositioningServerCheck {
+
+    private static final int K = 3;
+    private static final double TOLERANCE = 1e-9;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int scansPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        // A small synthetic survey; its scans are the queries.
+        TraceSynthesizer synthesizer = new TraceSynthesizer();
+        synthesizer.setPositions(40);
+        synthesizer.setAccessPoints(8);
+        synthesizer.setOrientations(0);
+        synthesizer.setSamples(10);
+        synthesizer.setSeed(42);
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        synthesizer.write(trace);
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(trace.toByteArray()), StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null)
+            if (!line.startsWith("#"))
+                lines.add(line);
+        Parser parser = new Parser();
+        List<TraceEntry> entries = new ArrayList<>();
+        for (String l : lines)
+            entries.add(parser.parseLine(l));
+
+        CompiledRadioMap compiled = new ParallelRadioMapBuilder().build(entries);
+        KNNEngine engine = new KNNEngine(compiled, K, DistanceMetrics.EUCLIDEAN);
+        File file = File.createTempFile("positioning-check", ".snap");
+        file.deleteOnExit();
+        compiled.write(file);
+
+        PositioningServer server = new PositioningServer(RadioMapSnapshot.open(file), K);
+        server.start(0);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                final int client = c;
+                results.add(executor.submit(() -> {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                        Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                        for (int s = 0; s < scansPerClient; s++) {
+                            int i = (client * scansPerClient + s) % lines.size();
+                            out.write(lines.get(i) + "\n");
+                            out.flush();
+                            String response = in.readLine();
+                            GeoPosition expected = engine.locate(entries.get(i).getSignalStrengthSamples());
+                            String[] xy = response.split(",");
+                            if (xy.length != 2 || Math.abs(Double.parseDouble(xy[0]) - expected.getX()) > TOLERANCE
+                                    || Math.abs(Double.parseDouble(xy[1]) - expected.getY()) > TOLERANCE)
+                                throw new IllegalStateException("Scan " + i + ": expected " + expected.getX() + "," + expected.getY() + ", got " + response);
+                        }
+                        out.write("QUIT\n");
+                        out.flush();
+                        return scansPerClient;
+                    }
+                }));
+            }
+            int scans = 0;
+            for (Future<Integer> result : results)
+                scans += result.get();
+            check(scans == clients * scansPerClient, "not every scan was answered");
+            System.out.println("PositioningServerCheck: " + scans + " scans from " + clients + " clients match KNNEngine.");
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                out.write("t=1;id=00:02:2D:21:0F:33\nSTATS\nQUIT\n");
+                out.flush();
+                String error = in.readLine();
+                check(error != null && error.startsWith("ERR"), "a scan without access points must answer ERR, got " + error);
+                String stats = in.readLine();
+                check(stats != null && stats.startsWith("{") && stats.contains("server.requests"), "STATS must answer the metrics, got " + stats);
+                check(in.readLine() == null, "QUIT must close the connection");
+            }
+            System.out.println("PositioningServerCheck: ERR, STATS and QUIT answered.");
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+
+        try {
+            server.locate(entries.get(0));
+            check(false, "locate after close must fail");
+        } catch (IOException e) {
+            System.out.println("PositioningServerCheck: locate after close fails with \"" + e.getMessage() + "\".");
+        }
+        System.out.println("PositioningServerCheck: OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.err.println("PositioningServerCheck: FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
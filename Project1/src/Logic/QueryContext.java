@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * The buffers of one query of a <code>KNNEngine</code>: the query vector and its
+ * variances, the distances to all positions, the k nearest neighbors and the
+ * estimation. A context is allocated once (per thread, see <code>KNNEngine.context()</code>)
+ * and reused by every query, so a query in the steady state allocates nothing:
+ * <pre>
+ * QueryContext context = engine.context();
+ * context.clear();
+ * context.put(mac, rss);  // for every access point of the scan
+ * engine.locate(context);
+ * double x = context.getX(), y = context.getY();
+ * </pre>
+ * A context must not be shared by threads.
+ *
+ * @author Pere
+ */
+public final class QueryContext {
+
+    final KNNEngine engine;
+    private final CompiledRadioMap radioMap;
+    final double[] query;
+    final double[] variances;
+    final double[] distances;
+    final NearestNeighbors nearest;
+    double x;
+    double y;
+    // put(SignalStrengthSamples) walks the access points of the scan with a consumer
+    // created once, as an iterator would be allocated for every scan
+    private SignalStrengthSamples scan;
+    private final Consumer<MACAddress> putAccessPoint = mac ->
+            put(mac.toLong(), scan.getAverageSignalStrength(mac), scan.getVarianceSignalStrength(mac));
+
+    QueryContext(KNNEngine engine) {
+        CompiledRadioMap radioMap = engine.getRadioMap();
+        this.engine = engine;
+        this.radioMap = radioMap;
+        this.query = new double[radioMap.getAccessPointCount()];
+        this.variances = new double[radioMap.getAccessPointCount()];
+        this.distances = new double[radioMap.getPositionCount()];
+        this.nearest = new NearestNeighbors(engine.getK());
+        clear();
+    }
+
+    /**
+     * Starts a new query: no access point is heard.
+     */
+    public void clear() {
+        Arrays.fill(query, Double.NaN);
+        Arrays.fill(variances, Double.NaN);
+        x = Double.NaN;
+        y = Double.NaN;
+    }
+
+    /**
+     * Sets the signal strength of an access point of the query (a single scan, without variance).
+     *
+     * @param mac  the 48 bit MAC value, see <code>MACAddress.toLong</code>
+     * @param signalStrength  the (average) signal strength
+     * @return  false if the radio map does not know the access point
+     */
+    public boolean put(long mac, double signalStrength) {
+        return put(mac, signalStrength, 0.0);
+    }
+
+    /**
+     * Sets the average signal strength and its variance of an access point of the query.
+     *
+     * @return  false if the radio map does not know the access point
+     */
+    public boolean put(long mac, double signalStrength, double variance) {
+        int ap = radioMap.indexOf(mac);
+        if (ap < 0)
+            return false;
+        query[ap] = signalStrength;
+        variances[ap] = variance;
+        return true;
+    }
+
+    /**
+     * Sets the average signal strengths and their variances of all access points of a
+     * scan (or joined scans). Allocates nothing.
+     *
+     * @param scan  the scan
+     */
+    public void put(SignalStrengthSamples scan) {
+        this.scan = scan;
+        try {
+            scan.keySet().forEach(putAccessPoint);
+        } finally {
+            this.scan = null;
+        }
+    }
+
+    /**
+     * Returns the x coordinate of the last estimation, NaN before the first one.
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y coordinate of the last estimation, NaN before the first one.
+     */
+    public double getY() {
+        return y;
+    }
+}
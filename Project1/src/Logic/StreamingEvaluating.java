@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import FileParser.FileParser;
+import java.io.File;
+import java.io.FileNotFoundException;
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.QuantileSketch;
+import org.pi4.locutil.StatisticsAccumulator;
+
+/**
+ * Evaluates the estimations directly as the positioning engine produces them. 
+ * Instead of keeping every error, the errors are counted in a quantile sketch, 
+ * so memory stays bounded no matter how many estimations are evaluated, and 
+ * evaluations of separate runs can be merged.
+ * 
+ * @author Pere
+ */
+public class StreamingEvaluating implements EstimateSink {
+    
+    private QuantileSketch errors;
+    private StatisticsAccumulator statistics;
+    
+    public StreamingEvaluating() {
+        this.errors = new QuantileSketch();
+        this.statistics = new StatisticsAccumulator();
+    }
+    
+    public StreamingEvaluating(double relativeAccuracy) {
+        this.errors = new QuantileSketch(relativeAccuracy);
+        this.statistics = new StatisticsAccumulator();
+    }
+    
+    @Override
+    public void add(GeoPosition truePosition, GeoPosition estimation) {
+        // Same (x,y) error as DistanceError.computeError
+        double dx = estimation.getX() - truePosition.getX();
+        double dy = estimation.getY() - truePosition.getY();
+        double err = Math.sqrt(dx * dx + dy * dy);
+        errors.add(err);
+        statistics.add(err);
+    }
+    
+    public void merge(StreamingEvaluating other) {
+        errors.merge(other.errors);
+        statistics.merge(other.statistics);
+    }
+    
+    public QuantileSketch getErrors() {
+        return errors;
+    }
+    
+    // Exact average, variance, minimum and maximum of the errors
+    public StatisticsAccumulator getStatistics() {
+        return statistics;
+    }
+    
+    // Writes the cumulative distribution function of the errors seen so far.
+    public void writeCDF(File outputFile) throws FileNotFoundException {
+        FileParser parser = new FileParser();
+        parser.writeEvaluation(errors, outputFile);
+    }
+    
+}
@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.io.RadioMapSnapshot;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.trace.Parser;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Locates the scans of a trace file while it is read, in four stages:
+ * <ol>
+ * <li>parsing the lines into trace entries,</li>
+ * <li>windowing: joining every scan with the previous <code>windowSize - 1</code> scans
+ * of its device (<code>TraceEntry.getId()</code>) into one fingerprint, see
+ * <code>DeviceWindows</code>,</li>
+ * <li>positioning the fingerprints on a radio map snapshot (k nearest neighbors),</li>
+ * <li>passing every estimation to the sink.</li>
+ * </ol>
+ * Every stage runs on its own thread and hands its output to the next stage through a
+ * bounded queue. A stage blocks when the queue to the next stage is full, so a slow
+ * stage throttles the stages before it (backpressure) and memory stays bounded by
+ * the buffer sizes, however long the trace is.
+ *
+ * @author Pere
+ */
+public class StreamingPipeline {
+
+    private static final LatencyHistogram RUN_TIME = Metrics.histogram("pipeline.run");
+    private static final LongAdder ENTRIES = Metrics.counter("pipeline.entries");
+    private static final LongAdder ESTIMATES = Metrics.counter("pipeline.estimates");
+
+    // End of stream markers
+    private static final TraceEntry END_OF_ENTRIES = new TraceEntry();
+    private static final Fingerprint END_OF_FINGERPRINTS = new Fingerprint(null, null);
+    private static final Fingerprint END_OF_ESTIMATES = new Fingerprint(null, null);
+
+    private RadioMapSnapshot radioMap;
+    private int k;
+    private int windowSize;
+    private int bufferSize = 1024;
+    private Parser parser;
+
+    // A joined fingerprint (or estimation) with the true position of its latest scan
+    private static class Fingerprint {
+        final GeoPosition truePosition;
+        final Object value; // the vector over the radio map or the estimated GeoPosition
+
+        Fingerprint(GeoPosition truePosition, Object value) {
+            this.truePosition = truePosition;
+            this.value = value;
+        }
+    }
+
+    public StreamingPipeline(RadioMapSnapshot radioMap, int k, int windowSize) {
+        if (k < 1 || k > radioMap.getPositionCount())
+            throw new IllegalArgumentException("k must be between 1 and the number of positions.");
+        if (windowSize < 1)
+            throw new IllegalArgumentException("windowSize must be >= 1");
+        this.radioMap = radioMap;
+        this.k = k;
+        this.windowSize = windowSize;
+        this.parser = new Parser();
+        this.parser.setPrecision(1.0);
+    }
+
+    /**
+     * Sets the capacity of each queue between two stages.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be >= 1");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the parser for the lines, e.g. to apply MAC or position filters.
+     */
+    public void setParser(Parser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Locates all scans of the trace file and returns when the last estimation has
+     * been passed to the sink.
+     *
+     * @param trace  the trace file
+     * @param sink  receives the estimations
+     * @throws IOException  if the trace cannot be read or parsed
+     */
+    public void run(File trace, EstimateSink sink) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        BlockingQueue<TraceEntry> entries = new ArrayBlockingQueue<>(bufferSize);
+        BlockingQueue<Fingerprint> fingerprints = new ArrayBlockingQueue<>(bufferSize);
+        BlockingQueue<Fingerprint> estimates = new ArrayBlockingQueue<>(bufferSize);
+
+        List<ExecutorService> executors = new ArrayList<>();
+        List<Future<Void>> stages = new ArrayList<>();
+        // Every stage reports here when it ends, so the first failure is seen whichever stage it is.
+        BlockingQueue<Future<Void>> done = new LinkedBlockingQueue<>();
+        try {
+            stages.add(stage(executors, done, "pipeline-parser", () -> parse(trace, entries)));
+            stages.add(stage(executors, done, "pipeline-window", () -> window(entries, fingerprints)));
+            stages.add(stage(executors, done, "pipeline-positioning", () -> locate(fingerprints, estimates)));
+            stages.add(stage(executors, done, "pipeline-sink", () -> consume(estimates, sink)));
+            for (int i = 0; i < stages.size(); i++)
+                done.take().get();
+        } catch (ExecutionException e) {
+            // A failed stage would leave the others blocked on their queues.
+            for (Future<Void> stage : stages)
+                stage.cancel(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            for (ExecutorService executor : executors)
+                executor.shutdownNow();
+        }
+        RUN_TIME.recordSince(start);
+    }
+
+    private static Future<Void> stage(List<ExecutorService> executors, BlockingQueue<Future<Void>> done,
+            String name, Callable<Void> task) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executors.add(executor);
+        CompletionService<Void> stages = new ExecutorCompletionService<>(executor, done);
+        return stages.submit(task);
+    }
+
+    private Void parse(File trace, BlockingQueue<TraceEntry> out) throws IOException, InterruptedException {
+        BufferedReader in = new BufferedReader(new FileReader(trace));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                TraceEntry entry = parser.parseLine(line);
+                if (entry != null)
+                    out.put(entry);
+            }
+        } finally {
+            in.close();
+            out.put(END_OF_ENTRIES);
+        }
+        return null;
+    }
+
+    private Void window(BlockingQueue<TraceEntry> in, BlockingQueue<Fingerprint> out) throws InterruptedException {
+        DeviceWindows windows = DeviceWindows.countBased(windowSize);
+        TraceEntry entry;
+        while ((entry = in.take()) != END_OF_ENTRIES) {
+            Metrics.count(ENTRIES, 1);
+            windows.add(entry);
+            out.put(new Fingerprint(entry.getGeoPosition(), windows.toVector(entry.getId(), radioMap)));
+        }
+        out.put(END_OF_FINGERPRINTS);
+        return null;
+    }
+
+    private Void locate(BlockingQueue<Fingerprint> in, BlockingQueue<Fingerprint> out) throws InterruptedException {
+        NearestNeighbors nearest = new NearestNeighbors(k);
+        Fingerprint fingerprint;
+        while ((fingerprint = in.take()) != END_OF_FINGERPRINTS) {
+            double[] vector = (double[]) fingerprint.value;
+            nearest.clear();
+            for (int p = 0; p < radioMap.getPositionCount(); p++)
+                nearest.offer(p, radioMap.distance(p, vector));
+            double x = 0.0;
+            double y = 0.0;
+            for (int i = 0; i < nearest.size(); i++) {
+                x += radioMap.getX(nearest.index(i));
+                y += radioMap.getY(nearest.index(i));
+            }
+            out.put(new Fingerprint(fingerprint.truePosition, new GeoPosition(x/nearest.size(), y/nearest.size())));
+        }
+        out.put(END_OF_ESTIMATES);
+        return null;
+    }
+
+    private Void consume(BlockingQueue<Fingerprint> in, EstimateSink sink) throws InterruptedException {
+        Fingerprint estimate;
+        while ((estimate = in.take()) != END_OF_ESTIMATES) {
+            sink.add(estimate.truePosition, (GeoPosition) estimate.value);
+            Metrics.count(ESTIMATES, 1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+import org.pi4.locutil.trace.TraceEntry;
+
+/**
+ * Radio map that can be updated while it is queried, e.g. by a survey team pushing
+ * new or corrected fingerprints to a running service.
+ *
+ * Queries run on a <code>Version</code>: an immutable radio map, read without locks.
+ * Every update publishes a new version. The positions are split into partitions of
+ * <code>PARTITION_SIZE</code> and an update copies only the partitions it changes,
+ * the other partitions are shared with the previous version. Access points get
+ * stable column indices that are never reused, so adding an access point does not
+ * copy the partitions that do not hear it.
+ *
+ * @author Pere
+ */
+public class UpdatableRadioMap {
+
+    public static final int PARTITION_SIZE = 64;
+
+    // Writer state, guarded by this
+    private final HashMap<GeoPosition, SignalStrengthSamples> fingerprints; // joined samples per position
+    private final HashMap<GeoPosition, Integer> partitionOf;
+    private final ArrayList<ArrayList<GeoPosition>> members; // positions per partition
+    private final HashMap<MACAddress, Integer> columns; // column index per access point heard somewhere
+    private final HashMap<MACAddress, Integer> hearing; // number of positions hearing each access point
+    private int nextColumn;
+
+    private volatile Version current;
+
+    /**
+     * An immutable radio map.
+     */
+    public static final class Version {
+        private final long number;
+        private final HashMap<MACAddress, Integer> columns;
+        private final int width;
+        private final Partition[] partitions;
+        private final int positions;
+
+        private Version(long number, HashMap<MACAddress, Integer> columns, int width, Partition[] partitions) {
+            this.number = number;
+            this.columns = columns;
+            this.width = width;
+            this.partitions = partitions;
+            int count = 0;
+            for (Partition partition : partitions)
+                count += partition.positions.length;
+            this.positions = count;
+        }
+
+        /**
+         * Returns the number of the version, incremented by every update.
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        public int getPositionCount() {
+            return positions;
+        }
+
+        public int getAccessPointCount() {
+            return columns.size();
+        }
+
+        /**
+         * Returns the average signal strength of an access point at a position.
+         *
+         * @return  the average, NaN if the position or the access point is unknown or the
+         * position does not hear the access point
+         */
+        public double getAverage(GeoPosition position, MACAddress mac) {
+            Integer column = columns.get(mac);
+            if (column == null)
+                return Double.NaN;
+            GeoPosition key = key(position);
+            for (Partition partition : partitions) {
+                for (int i = 0; i < partition.positions.length; i++) {
+                    if (partition.positions[i].equals(key)) {
+                        double[] row = partition.averages[i];
+                        return column < row.length ? row[column] : Double.NaN;
+                    }
+                }
+            }
+            return Double.NaN;
+        }
+
+        /**
+         * Estimates the position of a fingerprint as the average of the k nearest
+         * positions (Euclidean distance over the access points heard in both, like
+         * <code>Positioning.getEuclideanDistSS</code>).
+         *
+         * @return  the estimation, or null if the radio map has less than k positions
+         */
+        public GeoPosition estimate(SignalStrengthSamples ss, int k) {
+            double[] vector = new double[width];
+            Arrays.fill(vector, Double.NaN);
+            for (MACAddress mac : ss.keySet()) {
+                Integer column = columns.get(mac);
+                if (column != null)
+                    vector[column] = ss.getAverageSignalStrength(mac);
+            }
+            NearestNeighbors nearest = new NearestNeighbors(k);
+            GeoPosition[] positions = new GeoPosition[this.positions];
+            int p = 0;
+            for (Partition partition : partitions) {
+                for (int i = 0; i < partition.positions.length; i++) {
+                    double[] row = partition.averages[i];
+                    double sum = 0.0;
+                    for (int ap = 0; ap < row.length; ap++) {
+                        double diff = vector[ap] - row[ap];
+                        if (diff == diff) // both heard (not NaN)
+                            sum += diff * diff;
+                    }
+                    positions[p] = partition.positions[i];
+                    nearest.offer(p++, Math.sqrt(sum));
+                }
+            }
+            if (!nearest.isFull())
+                return null;
+            double x = 0.0;
+            double y = 0.0;
+            for (int i = 0; i < k; i++) {
+                x += positions[nearest.index(i)].getX();
+                y += positions[nearest.index(i)].getY();
+            }
+            return new GeoPosition(x/k, y/k);
+        }
+    }
+
+    // The fingerprints of up to PARTITION_SIZE positions; rows are as wide as the
+    // column count when they were compiled
+    private static final class Partition {
+        final GeoPosition[] positions;
+        final double[][] averages;
+
+        Partition(GeoPosition[] positions, double[][] averages) {
+            this.positions = positions;
+            this.averages = averages;
+        }
+    }
+
+    public UpdatableRadioMap() {
+        this.fingerprints = new HashMap<>();
+        this.partitionOf = new HashMap<>();
+        this.members = new ArrayList<>();
+        this.columns = new HashMap<>();
+        this.hearing = new HashMap<>();
+        this.current = new Version(0, new HashMap<>(), 0, new Partition[0]);
+    }
+
+    /**
+     * Creates a radio map from joined fingerprints, e.g. <code>Positioning.getJointSS</code>.
+     */
+    public UpdatableRadioMap(Map<GeoPosition, SignalStrengthSamples> jointSS) {
+        this();
+        HashSet<Integer> changed = new HashSet<>();
+        for (Map.Entry<GeoPosition, SignalStrengthSamples> fingerprint : jointSS.entrySet()) {
+            SignalStrengthSamples ss = new SignalStrengthSamples();
+            ss.add(fingerprint.getValue());
+            changed.add(insert(key(fingerprint.getKey()), ss));
+        }
+        publish(changed);
+    }
+
+    /**
+     * Returns the current version. It does not change, later updates publish new
+     * versions.
+     */
+    public Version getVersion() {
+        return current;
+    }
+
+    /**
+     * Adds offline trace entries: their samples are joined with the fingerprints of
+     * their positions (ignoring the orientation), like <code>Positioning.getJointSS</code>.
+     */
+    public synchronized void add(List<TraceEntry> traceEntries) {
+        HashSet<Integer> changed = new HashSet<>();
+        for (TraceEntry traceEntry : traceEntries) {
+            GeoPosition key = key(traceEntry.getGeoPosition());
+            SignalStrengthSamples ss = fingerprints.get(key);
+            if (ss == null) {
+                ss = new SignalStrengthSamples();
+                ss.add(traceEntry.getSignalStrengthSamples());
+                changed.add(insert(key, ss));
+            } else {
+                for (MACAddress mac : traceEntry.getSignalStrengthSamples().keySet())
+                    if (!ss.containsKey(mac))
+                        heard(mac, 1);
+                ss.add(traceEntry.getSignalStrengthSamples());
+                changed.add(partitionOf.get(key));
+            }
+        }
+        publish(changed);
+    }
+
+    /**
+     * Sets (or replaces) the fingerprint of a position.
+     */
+    public synchronized void put(GeoPosition position, SignalStrengthSamples fingerprint) {
+        GeoPosition key = key(position);
+        SignalStrengthSamples ss = new SignalStrengthSamples();
+        ss.add(fingerprint);
+        HashSet<Integer> changed = new HashSet<>();
+        SignalStrengthSamples old = fingerprints.get(key);
+        if (old == null) {
+            changed.add(insert(key, ss));
+        } else {
+            for (MACAddress mac : old.keySet())
+                heard(mac, -1);
+            for (MACAddress mac : ss.keySet())
+                heard(mac, 1);
+            fingerprints.put(key, ss);
+            changed.add(partitionOf.get(key));
+        }
+        publish(changed);
+    }
+
+    /**
+     * Removes the fingerprint of a position.
+     *
+     * @return  true if the position was in the radio map
+     */
+    public synchronized boolean remove(GeoPosition position) {
+        GeoPosition key = key(position);
+        SignalStrengthSamples old = fingerprints.remove(key);
+        if (old == null)
+            return false;
+        for (MACAddress mac : old.keySet())
+            heard(mac, -1);
+        int partition = partitionOf.remove(key);
+        members.get(partition).remove(key);
+        HashSet<Integer> changed = new HashSet<>();
+        changed.add(partition);
+        publish(changed);
+        return true;
+    }
+
+    /**
+     * Removes an access point, e.g. one that was taken down, from all fingerprints.
+     * Samples of it added later add it again.
+     *
+     * @return  true if any position heard the access point
+     */
+    public synchronized boolean removeAccessPoint(MACAddress mac) {
+        HashSet<Integer> changed = new HashSet<>();
+        for (Map.Entry<GeoPosition, SignalStrengthSamples> fingerprint : fingerprints.entrySet()) {
+            SignalStrengthSamples ss = fingerprint.getValue();
+            if (ss.containsKey(mac)) {
+                SignalStrengthSamples without = new SignalStrengthSamples();
+                for (MACAddress other : ss.keySet())
+                    if (!other.equals(mac))
+                        for (Iterator<Double> it = ss.iterator(other); it.hasNext(); )
+                            without.put(other, it.next());
+                fingerprint.setValue(without);
+                changed.add(partitionOf.get(fingerprint.getKey()));
+            }
+        }
+        hearing.remove(mac);
+        columns.remove(mac);
+        publish(changed);
+        return !changed.isEmpty();
+    }
+
+    // Assigns a new position to the last partition, or a new one if it is full
+    private int insert(GeoPosition key, SignalStrengthSamples ss) {
+        if (members.isEmpty() || members.get(members.size() - 1).size() >= PARTITION_SIZE)
+            members.add(new ArrayList<>());
+        int partition = members.size() - 1;
+        members.get(partition).add(key);
+        fingerprints.put(key, ss);
+        partitionOf.put(key, partition);
+        for (MACAddress mac : ss.keySet())
+            heard(mac, 1);
+        return partition;
+    }
+
+    private void heard(MACAddress mac, int delta) {
+        Integer count = hearing.get(mac);
+        int n = (count == null ? 0 : count) + delta;
+        if (n > 0) {
+            hearing.put(mac, n);
+            if (!columns.containsKey(mac))
+                columns.put(mac, nextColumn++);
+        } else {
+            hearing.remove(mac);
+            columns.remove(mac);
+        }
+    }
+
+    // Compiles the changed partitions and publishes a new version sharing the others
+    private void publish(HashSet<Integer> changed) {
+        Version previous = current;
+        Partition[] partitions = Arrays.copyOf(previous.partitions, members.size());
+        for (int p : changed) {
+            ArrayList<GeoPosition> positions = members.get(p);
+            double[][] averages = new double[positions.size()][];
+            for (int i = 0; i < averages.length; i++)
+                averages[i] = compile(fingerprints.get(positions.get(i)));
+            partitions[p] = new Partition(positions.toArray(new GeoPosition[positions.size()]), averages);
+        }
+        current = new Version(previous.number + 1, new HashMap<>(columns), nextColumn, partitions);
+    }
+
+    private double[] compile(SignalStrengthSamples ss) {
+        double[] row = new double[nextColumn];
+        Arrays.fill(row, Double.NaN);
+        for (MACAddress mac : ss.keySet())
+            row[columns.get(mac)] = ss.getAverageSignalStrength(mac);
+        return row;
+    }
+
+    private static GeoPosition key(GeoPosition position) {
+        return new GeoPosition(position.getX(), position.getY(), position.getZ());
+    }
+}
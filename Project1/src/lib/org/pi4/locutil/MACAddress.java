@@ -49,6 +49,47 @@ public class MACAddress implements Comparable<MACAddress>, Serializable {
 		return ba;
 	}
 	
+	/**
+	 * Parses a MAC address of the form <code>XX:XX:XX:XX:XX:XX</code> into its
+	 * 48 bit value (see <code>toLong</code>) without creating a <code>MACAddress</code>.
+	 * 
+	 * @param string	the MAC address
+	 * @return	the 48 bit value
+	 * @throws IllegalArgumentException	if the string is not a MAC address
+	 */
+	public static long parseLong(String string) {
+		if (string.length() != 17)
+			return parse(string).toLong();
+		long value = 0;
+		for (int i = 0; i < 17; i++) {
+			char c = string.charAt(i);
+			if (i % 3 == 2) {
+				if (c != ':') return parse(string).toLong();
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0)
+				return parse(string).toLong();
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+	
+	/**
+	 * Creates the MAC address with the specified 48 bit value.
+	 * 
+	 * @param value	the value, see <code>toLong</code>
+	 * @return	the MAC address
+	 */
+	public static MACAddress valueOf(long value) {
+		MACAddress ba = new MACAddress();
+		for (int i = 5; i >= 0; i--) {
+			ba.macAddress[i] = (short) (value & 0xFF);
+			value >>>= 8;
+		}
+		return ba;
+	}
+	
 	private short[] macAddress;
 	
 	protected MACAddress() {
@@ -59,6 +100,19 @@ public class MACAddress implements Comparable<MACAddress>, Serializable {
 		this.macAddress = mac;
 	}
 	
+	/**
+	 * Returns the 48 bit value of this MAC address, the first component in the
+	 * highest bits.
+	 * 
+	 * @return	the value
+	 */
+	public long toLong() {
+		long value = 0;
+		for (int i = 0; i < 6; i++)
+			value = (value << 8) | (macAddress[i] & 0xFF);
+		return value;
+	}
+	
 	public String toString() {
 		StringBuffer sb = new StringBuffer(17);
 		for (int i = 0; i < 6; ++i) {
@@ -0,0 +1,69 @@
+package org.pi4.locutil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assigns dense <code>int</code> indices (0, 1, 2, ...) to MAC addresses in the order
+ * they are added. The indices can be used to address bitsets and primitive arrays
+ * instead of hashing <code>MACAddress</code> objects over and over again.
+ */
+public class MACAddressIndex {
+	private HashMap<MACAddress, Integer> indices;
+	private ArrayList<MACAddress> macs;
+
+	public MACAddressIndex() {
+		indices = new HashMap<MACAddress, Integer>();
+		macs = new ArrayList<MACAddress>();
+	}
+
+	/**
+	 * Adds the specified MAC address if it is not indexed yet.
+	 *
+	 * @param mac	the MAC address
+	 * @return	the index of the MAC address
+	 */
+	public int add(MACAddress mac) {
+		Integer index = indices.get(mac);
+		if (index != null)
+			return index;
+		indices.put(mac, macs.size());
+		macs.add(mac);
+		return macs.size() - 1;
+	}
+
+	/**
+	 * Returns the index of the specified MAC address.
+	 *
+	 * @param mac	the MAC address
+	 * @return	the index, or -1 if the MAC address is not indexed
+	 */
+	public int indexOf(MACAddress mac) {
+		Integer index = indices.get(mac);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * Returns the MAC address with the specified index.
+	 *
+	 * @param index	the index
+	 * @return	the MAC address
+	 */
+	public MACAddress get(int index) {
+		return macs.get(index);
+	}
+
+	public int size() {
+		return macs.size();
+	}
+
+	/**
+	 * Returns the number of <code>long</code> words a bitset over all indexed
+	 * MAC addresses needs.
+	 *
+	 * @return	the number of words
+	 */
+	public int words() {
+		return (macs.size() + 63) >>> 6;
+	}
+}
@@ -0,0 +1,192 @@
+package org.pi4.locutil;
+
+/**
+ * Mergeable quantile sketch for non-negative values (e.g. positioning errors).
+ * Values are counted in logarithmic buckets <code>(gamma^(i-1), gamma^i]</code> with
+ * <code>gamma = (1 + a) / (1 - a)</code>, so every quantile is returned with a relative
+ * error of at most <code>a</code>. Memory only depends on the range of the values, not
+ * on their number, and two sketches with the same accuracy can be merged by adding
+ * their bucket counts. The buckets double as a histogram of the values.
+ */
+public class QuantileSketch {
+
+	/**
+	 * Values at or below this limit are counted as zero.
+	 */
+	private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+	private double relativeAccuracy;
+	private double logGamma;
+	private long[] counts;
+	private int offset; // bucket index of counts[0]
+	private long zeroCount;
+	private long count;
+	private double sum;
+	private double min;
+	private double max;
+
+	/**
+	 * Creates a sketch with a relative accuracy of 0.5%.
+	 */
+	public QuantileSketch() {
+		this(0.005);
+	}
+
+	/**
+	 * Creates a sketch with the specified relative accuracy.
+	 *
+	 * @param relativeAccuracy	maximum relative error of the quantiles, must be 0 < x < 1
+	 * @throws IllegalArgumentException	if the relative accuracy is out of range
+	 */
+	public QuantileSketch(double relativeAccuracy) {
+		if (!(relativeAccuracy > 0.0) || !(relativeAccuracy < 1.0))
+			throw new IllegalArgumentException("Relative accuracy must be 0 < x < 1.");
+		this.relativeAccuracy = relativeAccuracy;
+		logGamma = Math.log((1 + relativeAccuracy) / (1 - relativeAccuracy));
+		counts = new long[0];
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a value to the sketch.
+	 *
+	 * @param value	the value, must be finite and >= 0
+	 * @throws IllegalArgumentException	if the value is negative, infinite or NaN
+	 */
+	public void add(double value) {
+		// An infinite value would have no bucket index.
+		if (!(value >= 0.0) || value == Double.POSITIVE_INFINITY)
+			throw new IllegalArgumentException("Value must be finite and >= 0, found: " + value);
+		if (value <= MIN_INDEXABLE_VALUE) {
+			zeroCount++;
+		} else {
+			int index = (int) Math.ceil(Math.log(value) / logGamma);
+			ensureCapacity(index, index);
+			counts[index - offset]++;
+		}
+		count++;
+		sum += value;
+		if (value < min) min = value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * Adds all values of the specified sketch to this sketch.
+	 *
+	 * @param other	a sketch with the same relative accuracy
+	 * @throws IllegalArgumentException	if the relative accuracies differ
+	 */
+	public void merge(QuantileSketch other) {
+		if (other.relativeAccuracy != relativeAccuracy)
+			throw new IllegalArgumentException("Cannot merge sketches with different accuracies.");
+		if (other.count == 0)
+			return;
+		if (other.counts.length > 0) {
+			ensureCapacity(other.offset, other.offset + other.counts.length - 1);
+			for (int i = 0; i < other.counts.length; i++)
+				counts[other.offset + i - offset] += other.counts[i];
+		}
+		zeroCount += other.zeroCount;
+		count += other.count;
+		sum += other.sum;
+		if (other.min < min) min = other.min;
+		if (other.max > max) max = other.max;
+	}
+
+	/**
+	 * Returns the value at the specified quantile.
+	 *
+	 * @param q	the quantile, 0 <= q <= 1
+	 * @return	the value, within the relative accuracy of the sketch
+	 * @throws IllegalArgumentException	if q is out of range or the sketch is empty
+	 */
+	public double getQuantile(double q) {
+		if (!(q >= 0.0) || !(q <= 1.0))
+			throw new IllegalArgumentException("Quantile must be 0 <= q <= 1.");
+		if (count == 0)
+			throw new IllegalArgumentException("Sketch is empty");
+		long rank = (long) Math.ceil(q * count);
+		if (rank <= zeroCount)
+			return 0.0;
+		long seen = zeroCount;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(Math.max(bucketValue(offset + i), min), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the cumulative distribution function of the added values, one point
+	 * per non-empty bucket.
+	 *
+	 * @return	<code>{values, percentages}</code>; <code>percentages[i]</code> is the fraction of values
+	 * 			less than or equal to <code>values[i]</code> (up to the relative accuracy)
+	 */
+	public double[][] getCDF() {
+		int points = zeroCount > 0 ? 1 : 0;
+		for (int i = 0; i < counts.length; i++)
+			if (counts[i] > 0) points++;
+		double[] values = new double[points];
+		double[] percentages = new double[points];
+		int p = 0;
+		long seen = 0;
+		if (zeroCount > 0) {
+			seen = zeroCount;
+			values[p] = 0.0;
+			percentages[p++] = (double) seen / count;
+		}
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) continue;
+			seen += counts[i];
+			values[p] = Math.min(Math.max(bucketValue(offset + i), min), max);
+			percentages[p++] = (double) seen / count;
+		}
+		return new double[][] { values, percentages };
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getAverage() {
+		if (count == 0)
+			throw new IllegalArgumentException("Sketch is empty");
+		return sum / count;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getRelativeAccuracy() {
+		return relativeAccuracy;
+	}
+
+	// Representative value of bucket i: the value with the same relative distance to both bucket bounds.
+	private double bucketValue(int index) {
+		return 2.0 * Math.exp(index * logGamma) / (1.0 + Math.exp(logGamma));
+	}
+
+	private void ensureCapacity(int lowIndex, int highIndex) {
+		if (counts.length == 0) {
+			offset = lowIndex;
+			counts = new long[highIndex - lowIndex + 1];
+			return;
+		}
+		int newOffset = Math.min(offset, lowIndex);
+		int newEnd = Math.max(offset + counts.length - 1, highIndex);
+		if ((newOffset == offset) && (newEnd == offset + counts.length - 1))
+			return;
+		long[] newCounts = new long[newEnd - newOffset + 1];
+		System.arraycopy(counts, 0, newCounts, offset - newOffset, counts.length);
+		counts = newCounts;
+		offset = newOffset;
+	}
+}
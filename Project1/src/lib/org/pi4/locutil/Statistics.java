@@ -211,17 +211,54 @@ public class Statistics {
         if (data.length == 0)
             throw new IllegalArgumentException("Array length = 0");
         int n = data.length;
-        double[] temp = sort(data);
+        double[] temp = new double[n];
+        System.arraycopy(data, 0, temp, 0, n);
         
         // Check if the number of input values is odd
         if (n % 2 == 1) {
-            return temp[((n + 1) / 2) - 1];
+            return select(temp, (n - 1) / 2);
         } else {
-            double d1 = temp[n / 2];
-            double d2 = temp[(n / 2) - 1];
+            // after selecting the upper middle value, the lower one is the maximum left of it
+            double d1 = select(temp, n / 2);
+            double d2 = temp[0];
+            for (int i = 1; i < n / 2; i++) {
+                if (temp[i] > d2) d2 = temp[i];
+            }
             return (d1 + d2) / 2;
         }
 	}
+	
+	/**
+	 * Calculates the specified percentile from the specified values. Between two ranks
+	 * the percentile is interpolated linearly, so <code>percentile(data, 0.5)</code> equals
+	 * <code>median(data)</code>.
+	 * 
+	 * @param data  input values
+	 * @param q  the percentile as a fraction, 0 <= q <= 1
+	 * @return  the percentile as a <code>double</code>
+	 * @throws IllegalArgumentException  if the specified array is empty or q is out of range
+	 */
+	public static double percentile(double[] data, double q) {
+        if (data.length == 0)
+            throw new IllegalArgumentException("Array length = 0");
+        if (!(q >= 0.0) || !(q <= 1.0))
+            throw new IllegalArgumentException("Percentile must be 0 <= q <= 1");
+        int n = data.length;
+        double[] temp = new double[n];
+        System.arraycopy(data, 0, temp, 0, n);
+        
+        double h = (n - 1) * q;
+        int lo = (int) Math.floor(h);
+        double d1 = select(temp, lo);
+        if (lo == h)
+            return d1;
+        // the next rank is the minimum right of the selected value
+        double d2 = temp[lo + 1];
+        for (int i = lo + 2; i < n; i++) {
+            if (temp[i] < d2) d2 = temp[i];
+        }
+        return d1 + (h - lo) * (d2 - d1);
+	}
     
     /**
      * Calculates the median from the specified values.<br />
@@ -253,14 +290,18 @@ public class Statistics {
      */
 	public static double var(double[] data) {
         if (data.length <= 1) return 0.0;
-        double avg = avg(data);
+        // single pass over the values shifted by the first one, which keeps the
+        // sums small (no cancellation) for values close to each other, e.g. dBm
+        double shift = data[0];
         int n = data.length;
         double sum = 0;
+        double sumSq = 0;
         for (int i = 0; i < n; i++) {
-        	double placeholder = data[i] - avg;
-        	sum += placeholder*placeholder;
+        	double placeholder = data[i] - shift;
+        	sum += placeholder;
+        	sumSq += placeholder * placeholder;
         }
-        return (sum / (double) (n - 1));
+        return ((sumSq - sum * sum / n) / (double) (n - 1));
 	}
 	
 	/**
@@ -283,14 +324,17 @@ public class Statistics {
      */
     public static double var(List<? extends Number> list) {
         if (list.size() <= 1) return 0.0;
-        double avg = avg(list);
+        // single pass as above, every element is unboxed once
+        double shift = list.get(0).doubleValue();
         int n = list.size();
         double sum = 0;
+        double sumSq = 0;
         for (int i = 0; i < n; i++) {
-        	double placeholder = list.get(i).doubleValue() - avg;
-        	sum += placeholder * placeholder;
+        	double placeholder = list.get(i).doubleValue() - shift;
+        	sum += placeholder;
+        	sumSq += placeholder * placeholder;
         }
-        return (sum / (double) (n - 1));
+        return ((sumSq - sum * sum / n) / (double) (n - 1));
     }
     
     /**
@@ -374,24 +418,51 @@ public class Statistics {
 	}
     
     /**
-     * Sorts the specified array with insertion sort.
+     * Partially sorts the specified array with quickselect (expected linear time), so that
+     * the k-th smallest value ends up at index k, all smaller or equal values left of it
+     * and all greater or equal values right of it.
      * 
-     * @param values  an array of <code>double</code> that shall be sorted
-     * @return  a sorted array of <code>double</code>
+     * @param a  the values, reordered in place
+     * @param k  the rank to select, 0 <= k < a.length
+     * @return  the k-th smallest value
      */
-    private static double[] sort(double[] values) {
-        int i, j;
-        int n = values.length;
-        double[] a = new double[n];
-        System.arraycopy(values, 0, a, 0, n);
-        for(i = 1; i < n; i++) {
-            double temp = a[i];
-            for (j = i - 1; j >= 0 && a[j] > temp; j--) {
-                a[j + 1] = a[j];
+    private static double select(double[] a, int k) {
+        int left = 0;
+        int right = a.length - 1;
+        while (right > left) {
+            // median of three as pivot
+            int mid = (left + right) >>> 1;
+            if (a[mid] < a[left]) swap(a, left, mid);
+            if (a[right] < a[left]) swap(a, left, right);
+            if (a[right] < a[mid]) swap(a, mid, right);
+            double pivot = a[mid];
+            // Hoare partition
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    swap(a, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return a[k];
             }
-            a[j + 1] = temp;
         }
-        return a;
+        return a[k];
+    }
+    
+    private static void swap(double[] a, int i, int j) {
+        double temp = a[i];
+        a[i] = a[j];
+        a[j] = temp;
     }
     
 	/**
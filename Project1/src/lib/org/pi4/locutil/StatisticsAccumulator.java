@@ -0,0 +1,111 @@
+package org.pi4.locutil;
+
+/**
+ * Accumulates count, average, variance, minimum and maximum of a stream of values in
+ * a single pass without keeping the values. Accumulators filled by different threads
+ * or streams can be merged, e.g.
+ * <code>DoubleStream.collect(StatisticsAccumulator::new, StatisticsAccumulator::add, StatisticsAccumulator::merge)</code>.
+ * The variance is the sample variance, as in <code>Statistics.var</code>.
+ */
+public class StatisticsAccumulator {
+	private long count;
+	private double avg;
+	private double m2; // sum of the squared differences from the average
+	private double min;
+	private double max;
+
+	public StatisticsAccumulator() {
+		count = 0;
+		avg = 0.0;
+		m2 = 0.0;
+		min = Double.POSITIVE_INFINITY;
+		max = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a value (Welford's update).
+	 *
+	 * @param value	the value
+	 */
+	public void add(double value) {
+		count++;
+		double delta = value - avg;
+		avg += delta / count;
+		m2 += delta * (value - avg);
+		if (value < min) min = value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * Adds all values of the specified array.
+	 *
+	 * @param data	the values
+	 */
+	public void addAll(double[] data) {
+		for (int i = 0; i < data.length; i++)
+			add(data[i]);
+	}
+
+	/**
+	 * Adds all values accumulated by the specified accumulator (Chan's parallel update).
+	 *
+	 * @param other	the other accumulator
+	 */
+	public void merge(StatisticsAccumulator other) {
+		if (other.count == 0)
+			return;
+		if (count == 0) {
+			count = other.count;
+			avg = other.avg;
+			m2 = other.m2;
+			min = other.min;
+			max = other.max;
+			return;
+		}
+		long n = count + other.count;
+		double delta = other.avg - avg;
+		avg += delta * other.count / n;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+		count = n;
+		if (other.min < min) min = other.min;
+		if (other.max > max) max = other.max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the average.
+	 *
+	 * @return	the average as a <code>double</code>
+	 * @throws IllegalArgumentException	if no value has been added
+	 */
+	public double getAverage() {
+		if (count == 0)
+			throw new IllegalArgumentException("Count = 0");
+		return avg;
+	}
+
+	/**
+	 * Returns the variance, 0.0 for less than two values.
+	 *
+	 * @return	the variance as a <code>double</code>
+	 */
+	public double getVariance() {
+		if (count <= 1) return 0.0;
+		return m2 / (double) (count - 1);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+}
@@ -0,0 +1,361 @@
+package org.pi4.locutil.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.trace.SignalStrengthSamples;
+
+/**
+ * Read-only radio map stored in a file, so a positioning engine can start without
+ * parsing the offline trace. <code>open</code> maps the file into memory and all
+ * accessors read directly from the mapping: start-up costs neither parsing nor
+ * allocation per fingerprint, pages are loaded on first use, and processes mapping
+ * the same file share its pages.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int      magic ("RMAP"), version, number of access points A, number of positions P
+ * long[A]  access points (48 bit MAC values, ascending)
+ * double[P * 4]  positions (x, y, z, orientation)
+ * double[P * A]  average signal strength per position and access point, NaN if not heard
+ * double[P * A]  variance of the signal strength per position and access point, NaN if not heard
+ * int[A + 1]     offsets into the index below per access point
+ * int[...]       index: the positions hearing each access point, ascending
+ * </pre>
+ */
+public class RadioMapSnapshot {
+	private static final int MAGIC = 0x524D4150;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int accessPoints;
+	private final int positions;
+	private final LongBuffer macs;
+	private final DoubleBuffer coordinates;
+	private final DoubleBuffer averages;
+	private final DoubleBuffer variances;
+	private final IntBuffer offsets;
+	private final IntBuffer index;
+
+	private RadioMapSnapshot(File file, MappedByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a radio map snapshot: " + file);
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported radio map snapshot version " + buffer.getInt(4) + ": " + file);
+		accessPoints = buffer.getInt(8);
+		positions = buffer.getInt(12);
+		long cells = (long) accessPoints * positions;
+		long offset = HEADER_BYTES;
+		long indexOffset = offset + 8L * accessPoints + 32L * positions + 16L * cells;
+		if (accessPoints < 0 || positions < 0 || indexOffset + 4L * (accessPoints + 1) > buffer.capacity())
+			throw new IOException("Truncated radio map snapshot: " + file);
+		macs = slice(offset, 8L * accessPoints).asLongBuffer();
+		offset += 8L * accessPoints;
+		coordinates = slice(offset, 32L * positions).asDoubleBuffer();
+		offset += 32L * positions;
+		averages = slice(offset, 8L * cells).asDoubleBuffer();
+		offset += 8L * cells;
+		variances = slice(offset, 8L * cells).asDoubleBuffer();
+		offset += 8L * cells;
+		offsets = slice(offset, 4L * (accessPoints + 1)).asIntBuffer();
+		offset += 4L * (accessPoints + 1);
+		int entries = offsets.get(accessPoints);
+		if (entries < 0 || offset + 4L * entries > buffer.capacity())
+			throw new IOException("Truncated radio map snapshot: " + file);
+		index = slice(offset, 4L * entries).asIntBuffer();
+	}
+
+	/**
+	 * Maps the specified snapshot file read-only.
+	 *
+	 * @param file	the snapshot file, see <code>write</code>
+	 * @return	the snapshot
+	 * @throws IOException	if the file cannot be read or is not a snapshot
+	 */
+	public static RadioMapSnapshot open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Radio map snapshot larger than 2 GB: " + file);
+			// The mapping stays valid after the channel is closed.
+			return new RadioMapSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the specified radio map (e.g. <code>Positioning.getJointSS</code> of the
+	 * offline set) as a snapshot file.
+	 *
+	 * @param radioMap	the fingerprints per position
+	 * @param file	the output file
+	 * @throws IOException	if the file cannot be written
+	 */
+	public static void write(Map<GeoPosition, SignalStrengthSamples> radioMap, File file) throws IOException {
+		// AP dictionary
+		long[] dictionary = new long[16];
+		int accessPoints = 0;
+		HashSet<Long> seen = new HashSet<Long>();
+		for (SignalStrengthSamples ss : radioMap.values()) {
+			for (MACAddress mac : ss.keySet()) {
+				if (seen.add(mac.toLong())) {
+					if (accessPoints == dictionary.length)
+						dictionary = Arrays.copyOf(dictionary, 2 * accessPoints);
+					dictionary[accessPoints++] = mac.toLong();
+				}
+			}
+		}
+		dictionary = Arrays.copyOf(dictionary, accessPoints);
+		Arrays.sort(dictionary);
+		MACAddress[] apMacs = new MACAddress[accessPoints];
+		for (int a = 0; a < accessPoints; a++)
+			apMacs[a] = MACAddress.valueOf(dictionary[a]);
+
+		GeoPosition[] keys = radioMap.keySet().toArray(new GeoPosition[radioMap.size()]);
+		double[] coordinates = new double[4 * keys.length];
+		double[] averages = new double[keys.length * accessPoints];
+		double[] variances = new double[keys.length * accessPoints];
+		for (int p = 0; p < keys.length; p++) {
+			GeoPosition pos = keys[p];
+			coordinates[4 * p] = pos.getX();
+			coordinates[4 * p + 1] = pos.getY();
+			coordinates[4 * p + 2] = pos.getZ();
+			coordinates[4 * p + 3] = pos.getOrientation();
+			SignalStrengthSamples ss = radioMap.get(pos);
+			for (int a = 0; a < accessPoints; a++) {
+				boolean heard = ss.containsKey(apMacs[a]);
+				averages[p * accessPoints + a] = heard ? ss.getAverageSignalStrength(apMacs[a]) : Double.NaN;
+				variances[p * accessPoints + a] = heard ? ss.getVarianceSignalStrength(apMacs[a]) : Double.NaN;
+			}
+		}
+		write(dictionary, coordinates, averages, variances, file);
+	}
+
+	/**
+	 * Writes a compiled radio map as a snapshot file.
+	 *
+	 * @param macs	the access points (48 bit MAC values), ascending
+	 * @param coordinates	x, y, z and orientation of every position
+	 * @param averages	average signal strength per position and access point, NaN if not heard
+	 * @param variances	variance per position and access point, NaN if not heard
+	 * @param file	the output file
+	 * @throws IOException	if the file cannot be written
+	 */
+	public static void write(long[] macs, double[] coordinates, double[] averages, double[] variances, File file) throws IOException {
+		int accessPoints = macs.length;
+		int positions = coordinates.length / 4;
+		for (int a = 1; a < accessPoints; a++)
+			if (macs[a - 1] >= macs[a])
+				throw new IllegalArgumentException("The access points must be ascending.");
+		if (averages.length != positions * accessPoints || variances.length != positions * accessPoints)
+			throw new IllegalArgumentException("The matrices must have positions * access points entries.");
+		long size = HEADER_BYTES + 8L * accessPoints + 32L * positions + 20L * accessPoints * positions + 4L * (accessPoints + 1);
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Radio map too large for a snapshot: " + positions + " positions, " + accessPoints + " access points");
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(accessPoints);
+			out.writeInt(positions);
+			for (int a = 0; a < accessPoints; a++)
+				out.writeLong(macs[a]);
+			for (int i = 0; i < coordinates.length; i++)
+				out.writeDouble(coordinates[i]);
+			for (int i = 0; i < averages.length; i++)
+				out.writeDouble(averages[i]);
+			for (int i = 0; i < variances.length; i++)
+				out.writeDouble(variances[i]);
+			int offset = 0;
+			for (int a = 0; a < accessPoints; a++) {
+				out.writeInt(offset);
+				for (int p = 0; p < positions; p++)
+					if (!Double.isNaN(averages[p * accessPoints + a])) offset++;
+			}
+			out.writeInt(offset);
+			for (int a = 0; a < accessPoints; a++)
+				for (int p = 0; p < positions; p++)
+					if (!Double.isNaN(averages[p * accessPoints + a])) out.writeInt(p);
+		} finally {
+			out.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getAccessPointCount() {
+		return accessPoints;
+	}
+
+	public int getPositionCount() {
+		return positions;
+	}
+
+	/**
+	 * Returns the access point with the specified index.
+	 *
+	 * @param ap	0 <= ap < getAccessPointCount()
+	 * @return	the MAC address
+	 */
+	public MACAddress getAccessPoint(int ap) {
+		return MACAddress.valueOf(macs.get(ap));
+	}
+
+	/**
+	 * Returns the index of the specified access point (binary search in the dictionary).
+	 *
+	 * @param mac	the MAC address
+	 * @return	the index, or -1 if the access point is not in the radio map
+	 */
+	public int indexOf(MACAddress mac) {
+		return indexOf(mac.toLong());
+	}
+
+	/**
+	 * Returns the index of the specified access point.
+	 *
+	 * @param mac	the 48 bit MAC value, see <code>MACAddress.toLong</code>
+	 * @return	the index, or -1 if the access point is not in the radio map
+	 */
+	public int indexOf(long mac) {
+		int low = 0;
+		int high = accessPoints - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long found = macs.get(mid);
+			if (found < mac) low = mid + 1;
+			else if (found > mac) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the position with the specified index (a new object on every call).
+	 *
+	 * @param position	0 <= position < getPositionCount()
+	 * @return	the position
+	 */
+	public GeoPosition getPosition(int position) {
+		int i = 4 * position;
+		return new GeoPosition(coordinates.get(i), coordinates.get(i + 1), coordinates.get(i + 2), coordinates.get(i + 3));
+	}
+
+	public double getX(int position) {
+		return coordinates.get(4 * position);
+	}
+
+	public double getY(int position) {
+		return coordinates.get(4 * position + 1);
+	}
+
+	/**
+	 * Returns the average signal strength of an access point at a position.
+	 *
+	 * @return	the average, NaN if the access point is not heard at the position
+	 */
+	public double getAverage(int position, int ap) {
+		return averages.get(position * accessPoints + ap);
+	}
+
+	/**
+	 * Returns the variance of the signal strength of an access point at a position.
+	 *
+	 * @return	the variance, NaN if the access point is not heard at the position
+	 */
+	public double getVariance(int position, int ap) {
+		return variances.get(position * accessPoints + ap);
+	}
+
+	/**
+	 * Returns the positions hearing the specified access point.
+	 *
+	 * @param ap	0 <= ap < getAccessPointCount()
+	 * @return	the position indices, ascending
+	 */
+	public int[] getPositionsHearing(int ap) {
+		int from = offsets.get(ap);
+		int[] result = new int[offsets.get(ap + 1) - from];
+		for (int i = 0; i < result.length; i++)
+			result[i] = index.get(from + i);
+		return result;
+	}
+
+	/**
+	 * Returns the average signal strengths of the specified fingerprint over the
+	 * access points of this radio map (NaN if not heard), e.g. for <code>distance</code>.
+	 *
+	 * @param ss	the fingerprint
+	 * @return	the vector
+	 */
+	public double[] toVector(SignalStrengthSamples ss) {
+		double[] vector = new double[accessPoints];
+		Arrays.fill(vector, Double.NaN);
+		for (MACAddress mac : ss.keySet()) {
+			int ap = indexOf(mac);
+			if (ap >= 0)
+				vector[ap] = ss.getAverageSignalStrength(mac);
+		}
+		return vector;
+	}
+
+	/**
+	 * Returns the Euclidean distance between a vector and the fingerprint of a position,
+	 * over the access points heard in both (like <code>Positioning.getEuclideanDistSS</code>).
+	 *
+	 * @param position	the position
+	 * @param vector	the vector, see <code>toVector</code>
+	 * @return	the distance
+	 */
+	public double distance(int position, double[] vector) {
+		int base = position * accessPoints;
+		double sum = 0.0;
+		for (int ap = 0; ap < accessPoints; ap++) {
+			double diff = vector[ap] - averages.get(base + ap);
+			if (diff == diff) // both heard (not NaN)
+				sum += diff * diff;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Loads all pages of the mapping into physical memory, e.g. at start-up so the
+	 * first queries do not fault them in.
+	 */
+	public void load() {
+		buffer.load();
+	}
+
+	private ByteBuffer slice(long offset, long length) {
+		ByteBuffer duplicate = buffer.duplicate();
+		// through Buffer, so the class also links on Java 8
+		((Buffer) duplicate).limit((int) (offset + length));
+		((Buffer) duplicate).position((int) offset);
+		return duplicate.slice();
+	}
+}
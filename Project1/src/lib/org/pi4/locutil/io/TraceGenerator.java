@@ -3,13 +3,25 @@ package org.pi4.locutil.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.pi4.locutil.GeoPosition;
 import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.MACAddressIndex;
 import org.pi4.locutil.Random;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
 import org.pi4.locutil.trace.Parser;
 import org.pi4.locutil.trace.SignalStrengthSamples;
 import org.pi4.locutil.trace.TraceEntry;
@@ -21,19 +33,32 @@ import org.pi4.locutil.trace.TraceEntry;
  * @author lubberger
  */
 public class TraceGenerator {
+	private static final LatencyHistogram GENERATE_TIME = Metrics.histogram("tracegenerator.generate");
+	private static final LatencyHistogram LOAD_TIME = Metrics.histogram("tracegenerator.load");
+	
 	private ArrayList<TraceEntry> offlineTraceEntries;
 	private ArrayList<TraceEntry> onlineTraceEntries;
+	private double[] offlineOrientations; // as parsed, see fillBuckets
+	private double[] onlineOrientations;
 	private ArrayList<TraceEntry> offlineSet;
 	private ArrayList<TraceEntry> onlineSet;
 	private ArrayList<MACAddress> minimumMacSet;
-	private ArrayList<Integer> onlineSetBuckets;
-	private ArrayList<GeoPosition> trackingPos;
-	private Hashtable<GeoPosition, ArrayList<TraceEntry>> offlineTraceEntryBuckets;
-	private Hashtable<GeoPosition, ArrayList<TraceEntry>> onlineTraceEntryBuckets;
+	private boolean[] onlineSetBuckets;
+	private ArrayList<GeoPosition> offlineBucketKeys;
+	private ArrayList<GeoPosition> onlineBucketKeys; // in tracking order
+	private ArrayList<ArrayList<TraceEntry>> offlineTraceEntryBuckets;
+	private ArrayList<ArrayList<TraceEntry>> onlineTraceEntryBuckets;
+	private int[][] offlineBucketPermutations;
+	private int[][] onlineBucketPermutations;
+	private int[][] onlinePositionGroups;
+	private int[] onlinePositionOrder;
+	private boolean indexed = false;
+	private volatile boolean shared = false; // the traceEntries are shared with a copy, see copyTraceEntries
 	
 	private boolean verbose = false;
 	private boolean warnings = true;
 	private boolean discardOrientationInFingerprints;
+	private boolean bitsetMacSets;
 	private int offlineSize;
 	private int onlineSize;
 	private double onlineRatio;
@@ -41,6 +66,19 @@ public class TraceGenerator {
 	
 	// Constructor
 	public TraceGenerator(Parser offlineParser, Parser onlineParser, int offlineSize, int onlineSize) throws IOException, NumberFormatException {
+		this(offlineSize, onlineSize);
+		long start = System.nanoTime();
+		onlineParser.setPrecision(5.0);
+		offlineParser.setPrecision(45.0);
+		// parse() returns a new list, which the generator keeps as it is.
+		loadOffline(offlineParser.parse());
+		loadOnline(onlineParser.parse());
+		LOAD_TIME.recordSince(start);
+		
+		if (verbose) System.out.println("TraceGenerator was fed with " + offlineTraceEntries.size() + " TraceEntries for the offline set and " + onlineTraceEntries.size() + " TraceEntries for the online set.");
+	}
+	
+	private TraceGenerator(int offlineSize, int onlineSize) {
 		verbose = false;
 		warnings = false;
 		if (verbose) System.out.println("TraceGenerator created.");
@@ -51,14 +89,115 @@ public class TraceGenerator {
 		onlineRatio = 100.0;
 		discardOrientationInFingerprints = true;
 		traceType = "Rice";
+		bitsetMacSets = false;
+	}
+	
+	/**
+	 * Creates a TraceGenerator asynchronously: the offline and the online trace are
+	 * parsed concurrently on <code>executor</code>, and the buckets of each trace are
+	 * built by the task that parsed it, while the other trace may still be parsed.
+	 * Only the last steps of the bucket index wait for both traces, so the start-up
+	 * takes about as long as the larger trace instead of both. The buckets are built
+	 * with the default settings; changing them rebuilds the buckets on the next call
+	 * to <code>generate()</code>.
+	 * 
+	 * @param executor	runs the two parsing tasks (at least two threads to run them concurrently)
+	 * @return	the generator, ready to <code>generate()</code>, or the exception of a
+	 * 			failed parse (an <code>UncheckedIOException</code> for an
+	 * 			<code>IOException</code>) or of the bucket index
+	 */
+	public static CompletableFuture<TraceGenerator> load(final Parser offlineParser, final Parser onlineParser, int offlineSize, int onlineSize, Executor executor) {
+		final long start = System.nanoTime();
+		final TraceGenerator tg = new TraceGenerator(offlineSize, onlineSize);
 		onlineParser.setPrecision(5.0);
 		offlineParser.setPrecision(45.0);
-		offlineTraceEntries = new ArrayList<TraceEntry>(offlineParser.parse());
-		onlineTraceEntries = new ArrayList<TraceEntry>(onlineParser.parse());
-		
-		if (verbose) System.out.println("TraceGenerator was fed with " + offlineTraceEntries.size() + " TraceEntries for the offline set and " + onlineTraceEntries.size() + " TraceEntries for the online set.");
+		CompletableFuture<Void> offline = CompletableFuture.supplyAsync(parseTask(offlineParser), executor).thenAccept(new Consumer<ArrayList<TraceEntry>>() {
+			public void accept(ArrayList<TraceEntry> traceEntries) {
+				tg.loadOffline(traceEntries);
+				tg.fillOfflineBuckets();
+			}
+		});
+		CompletableFuture<Void> online = CompletableFuture.supplyAsync(parseTask(onlineParser), executor).thenAccept(new Consumer<ArrayList<TraceEntry>>() {
+			public void accept(ArrayList<TraceEntry> traceEntries) {
+				tg.loadOnline(traceEntries);
+				tg.fillOnlineBuckets();
+			}
+		});
+		// Runs in the task that finishes last; the completion of both tasks publishes
+		// their fields to it.
+		return offline.thenCombine(online, new BiFunction<Void, Void, TraceGenerator>() {
+			public TraceGenerator apply(Void o1, Void o2) {
+				if (!tg.offlineTraceEntries.isEmpty() && !tg.onlineTraceEntries.isEmpty())
+					tg.completeBucketIndex();
+				LOAD_TIME.recordSince(start);
+				return tg;
+			}
+		});
+	}
+	
+	private static Supplier<ArrayList<TraceEntry>> parseTask(final Parser parser) {
+		return new Supplier<ArrayList<TraceEntry>>() {
+			public ArrayList<TraceEntry> get() {
+				try {
+					return parser.parse();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+	
+	private void loadOffline(ArrayList<TraceEntry> traceEntries) {
+		offlineTraceEntries = traceEntries;
+		offlineOrientations = orientations(traceEntries);
 	}
 	
+	private void loadOnline(ArrayList<TraceEntry> traceEntries) {
+		onlineTraceEntries = traceEntries;
+		onlineOrientations = orientations(traceEntries);
+	}
+
+	/**
+	 * Creates a TraceGenerator on the traceEntries loaded by <code>source</code>, without
+	 * parsing them again. The new generator copies the settings of <code>source</code>
+	 * and shares its buckets, if they are built, but draws its own sets; it only builds
+	 * its own buckets once one of its settings is changed. The shared traceEntries are
+	 * never modified again: building the buckets sets the orientation of the
+	 * traceEntries and the "Radar" type trims them, so a generator sharing them builds
+	 * its buckets on private copies. Generators sharing the traceEntries may therefore
+	 * generate concurrently with any settings.
+	 *
+	 * @param source	the generator whose traceEntries are shared
+	 */
+	public TraceGenerator(TraceGenerator source) {
+		source.shared = true;
+		shared = true;
+		verbose = source.verbose;
+		warnings = source.warnings;
+		offlineSize = source.offlineSize;
+		onlineSize = source.onlineSize;
+		onlineRatio = source.onlineRatio;
+		discardOrientationInFingerprints = source.discardOrientationInFingerprints;
+		traceType = source.traceType;
+		bitsetMacSets = source.bitsetMacSets;
+		offlineTraceEntries = source.offlineTraceEntries;
+		onlineTraceEntries = source.onlineTraceEntries;
+		offlineOrientations = source.offlineOrientations;
+		onlineOrientations = source.onlineOrientations;
+		if (source.indexed) {
+			// The buckets are only read from now on; the index arrays of the draws
+			// are modified by every draw, so every generator has its own.
+			offlineBucketKeys = source.offlineBucketKeys;
+			onlineBucketKeys = source.onlineBucketKeys;
+			offlineTraceEntryBuckets = source.offlineTraceEntryBuckets;
+			onlineTraceEntryBuckets = source.onlineTraceEntryBuckets;
+			minimumMacSet = source.minimumMacSet;
+			onlinePositionGroups = source.onlinePositionGroups;
+			createDrawIndex();
+			indexed = true;
+		}
+	}
+
 	public int getOnlineSetSize() {
 		return onlineSize;
 	}
@@ -71,61 +210,116 @@ public class TraceGenerator {
 		return traceType;
 	}
 	
+	/**
+	 * Sets the trace type ("Radar", "RadarPUnknown" or "Rice"). The buckets are
+	 * rebuilt by the next call to <code>generate()</code>. Note that the "Radar"
+	 * type trims the signal strength samples of the loaded traceEntries in place (of
+	 * private copies, if they are shared, see <code>TraceGenerator(TraceGenerator)</code>).
+	 * 
+	 * @param traceType	the trace type
+	 */
+	public void setTraceType(String traceType) {
+		if (this.traceType.equals(traceType))
+			return;
+		this.traceType = traceType;
+		indexed = false;
+	}
+	
+	/**
+	 * Selects how the "Radar" trace type determines the minimum MAC set and
+	 * filters the traceEntries: on bitsets over a dense AP index or on lists of
+	 * MAC addresses (default, the original implementation). The bitset mode
+	 * consumes the random generator in its own order, so a run with it is not
+	 * reproducible against one with the list mode.
+	 * 
+	 * @param bitsetMacSets	<code>true</code> for the bitset mode
+	 */
+	public void setBitsetMacSets(boolean bitsetMacSets) {
+		if (this.bitsetMacSets == bitsetMacSets)
+			return;
+		this.bitsetMacSets = bitsetMacSets;
+		indexed = false;
+	}
+	
+	public boolean getBitsetMacSets() {
+		return bitsetMacSets;
+	}
+	
+	/**
+	 * Selects whether fingerprints are formed per position (default) or per position
+	 * and orientation. When discarding, the orientation of the loaded traceEntries is
+	 * set to NaN by the next call to <code>generate()</code>; otherwise it is restored to
+	 * the parsed orientation.
+	 * 
+	 * @param discardOrientationInFingerprints	<code>true</code> to discard the orientation
+	 */
+	public void setDiscardOrientationInFingerprints(boolean discardOrientationInFingerprints) {
+		if (this.discardOrientationInFingerprints == discardOrientationInFingerprints)
+			return;
+		this.discardOrientationInFingerprints = discardOrientationInFingerprints;
+		indexed = false;
+	}
+	
+	public boolean getDiscardOrientationInFingerprints() {
+		return discardOrientationInFingerprints;
+	}
+	
 	// Method for generating the offline and online sets
 	public void generate() throws RuntimeException {
-		// required to keep track of the order of the online set traceentries (used by tracking)
-		trackingPos = new ArrayList<GeoPosition>();
-		
+		long start = System.nanoTime();
 		// Check if a traceType has been specified.
 		if (traceType.equals(""))
 			throw new RuntimeException("No traceType specified!");
-		// Sort the traceEntries into different buckets
-		// according to their positions and orientations.
 		if (offlineTraceEntries.size() == 0)
 			throw new RuntimeException("Cannot generate the offline set without any traceEntries!");
 		if (onlineTraceEntries.size() == 0)
 			throw new RuntimeException("Cannot generate the online set without any traceEntries!");
-				
-		// initiate offline trace data structures
-		offlineTraceEntryBuckets = new Hashtable<GeoPosition, ArrayList<TraceEntry>>();
-		// initiate online trace data structures
-		onlineTraceEntryBuckets = new Hashtable<GeoPosition, ArrayList<TraceEntry>>();
-				
-		for (int i = 0; i < offlineTraceEntries.size(); i++) {
-			TraceEntry te = offlineTraceEntries.get(i);
-			GeoPosition gp = te.getGeoPosition();
-			if (discardOrientationInFingerprints)
-				gp.setOrientation(Double.NaN);
-			
-			if (offlineTraceEntryBuckets.containsKey(gp)) { // a bucket for this position and orientation already exists
-				offlineTraceEntryBuckets.get(gp).add(te);
-			} else { // no bucket yet for this position and orientation
-				ArrayList<TraceEntry> traceEntryBucket = new ArrayList<TraceEntry>();
-				traceEntryBucket.add(te);
-				offlineTraceEntryBuckets.put(gp, traceEntryBucket);
-			}
-		}		
-		if (verbose) System.out.println("TraceGenerator: Data for " + offlineTraceEntryBuckets.size() + " different fingerprints found.");
 		
-		for (int i = 0; i < onlineTraceEntries.size(); i++) {
-			TraceEntry te = onlineTraceEntries.get(i);
-			GeoPosition gp = te.getGeoPosition();
-			if (discardOrientationInFingerprints)
-				gp.setOrientation(Double.NaN);
-			
-			if (onlineTraceEntryBuckets.containsKey(gp)) { // a bucket for this position and orientation already exists
-				onlineTraceEntryBuckets.get(gp).add(te);
-			} else { // no bucket yet for this position and orientation
-				ArrayList<TraceEntry> traceEntryBucket = new ArrayList<TraceEntry>();
-				traceEntryBucket.add(te);
-				onlineTraceEntryBuckets.put(gp, traceEntryBucket);
-			}
-			if (!trackingPos.contains(gp)) trackingPos.add(gp);
-		}
-		if (verbose) System.out.println("TraceGenerator: Data for " + onlineTraceEntryBuckets.size() + " different test positions found.");
+		// The buckets only depend on the loaded traces, so they are built once
+		// and every further call just draws new samples from them.
+		if (!indexed)
+			buildBucketIndex();
 		
+		// Generate the sets.
+		generateSets();
+		GENERATE_TIME.recordSince(start);
+		if (verbose) System.out.println("TraceGenerator: Done.");
+	}
+	
+	private void buildBucketIndex() {
+		if (shared)
+			copyTraceEntries();
+		fillOfflineBuckets();
+		fillOnlineBuckets();
+		completeBucketIndex();
+	}
+	
+	private void fillOfflineBuckets() {
+		// Sort the traceEntries into different buckets
+		// according to their positions and orientations.
+		offlineBucketKeys = new ArrayList<GeoPosition>();
+		offlineTraceEntryBuckets = new ArrayList<ArrayList<TraceEntry>>();
+		fillBuckets(offlineTraceEntries, offlineOrientations, offlineBucketKeys, offlineTraceEntryBuckets);
+		if (verbose) System.out.println("TraceGenerator: Data for " + offlineTraceEntryBuckets.size() + " different fingerprints found.");
+	}
+	
+	private void fillOnlineBuckets() {
+		// The online buckets keep the order in which their positions first appear
+		// in the trace (used by tracking).
+		onlineBucketKeys = new ArrayList<GeoPosition>();
+		onlineTraceEntryBuckets = new ArrayList<ArrayList<TraceEntry>>();
+		fillBuckets(onlineTraceEntries, onlineOrientations, onlineBucketKeys, onlineTraceEntryBuckets);
+		if (verbose) System.out.println("TraceGenerator: Data for " + onlineTraceEntryBuckets.size() + " different test positions found.");
+	}
+	
+	// The steps of the bucket index that need the buckets of both traces
+	private void completeBucketIndex() {
 		// Operations depending on the chosen traceType:
-		if (traceType.equals("Radar")) {
+		if (traceType.equals("Radar") && bitsetMacSets) {
+			// Same as below, but on bitsets over a dense AP index.
+			if (verbose) System.out.println("TraceGenerator: Filtering the traceEntries with the minimum MAC set (bitset mode) ...");
+			filterWithMinimumMacBitset(0);
+		} else if (traceType.equals("Radar")) {
 			// Determine the minimum MAC set.
 			if (verbose) System.out.println("TraceGenerator: Determining the minimum MAC set of all fingerprints and test positions ...");
 			minimumMacSet = determineMinimumMacSet();
@@ -141,28 +335,83 @@ public class TraceGenerator {
 			if (verbose) System.out.println("TraceGenerator: Trimming the remaining traceEntries to match the minimum MAC set ...");
 			trimTraceEntries(0, offlineTraceEntryBuckets);
 			trimTraceEntries(0, onlineTraceEntryBuckets);
-
-			// Check if the buckets still contain enough entries.
-			checkBucketSizes();
-			
-			// Generate the sets.
-			generateSets();
-		} else if (traceType.equals("RadarPUnknown")) {
-			// Check if the buckets still contain enough entries.
-			checkBucketSizes();
-			
-			// Generate the sets.
-			generateSets();
-		} else if (traceType.equals("Rice")) {
-			// Check if the buckets contain enough entries.
-			checkBucketSizes();
-
-			// Generate the sets.
-			generateSets();
-		} else {
+		} else if (!traceType.equals("RadarPUnknown") && !traceType.equals("Rice")) {
 			throw new RuntimeException("Unknown traceType!");
 		}
-		if (verbose) System.out.println("TraceGenerator: Done.");
+		
+		// Check if the buckets (still) contain enough entries.
+		checkBucketSizes();
+		
+		groupOnlinePositions();
+		createDrawIndex();
+		indexed = true;
+	}
+	
+	// Index arrays used for drawing the samples without touching the buckets
+	private void createDrawIndex() {
+		offlineBucketPermutations = createPermutations(offlineTraceEntryBuckets);
+		onlineBucketPermutations = createPermutations(onlineTraceEntryBuckets);
+		onlinePositionOrder = new int[onlinePositionGroups.length];
+		for (int i = 0; i < onlinePositionOrder.length; i++)
+			onlinePositionOrder[i] = i;
+		onlineSetBuckets = new boolean[onlineTraceEntryBuckets.size()];
+	}
+	
+	// Replaces the shared traceEntries by private copies, which the buckets may modify.
+	private void copyTraceEntries() {
+		offlineTraceEntries = copy(offlineTraceEntries);
+		onlineTraceEntries = copy(onlineTraceEntries);
+		shared = false;
+	}
+	
+	private static ArrayList<TraceEntry> copy(ArrayList<TraceEntry> traceEntries) {
+		ArrayList<TraceEntry> copies = new ArrayList<TraceEntry>(traceEntries.size());
+		for (TraceEntry te : traceEntries) {
+			GeoPosition gp = te.getGeoPosition();
+			SignalStrengthSamples samples = new SignalStrengthSamples(te.getSignalStrengthSamples());
+			samples.setTimestamp(te.getSignalStrengthSamples().getTimestamp());
+			copies.add(new TraceEntry(te.getTimestamp(), new GeoPosition(gp.getX(), gp.getY(), gp.getZ(), gp.getOrientation()), te.getSpeed(), te.getId(), samples));
+		}
+		return copies;
+	}
+	
+	private static double[] orientations(ArrayList<TraceEntry> traceEntries) {
+		double[] orientations = new double[traceEntries.size()];
+		for (int i = 0; i < orientations.length; i++)
+			orientations[i] = traceEntries.get(i).getGeoPosition().getOrientation();
+		return orientations;
+	}
+	
+	private void fillBuckets(ArrayList<TraceEntry> traceEntries, double[] orientations, ArrayList<GeoPosition> bucketKeys, ArrayList<ArrayList<TraceEntry>> traceEntryBuckets) {
+		HashMap<GeoPosition, Integer> bucketIndex = new HashMap<GeoPosition, Integer>();
+		for (int i = 0; i < traceEntries.size(); i++) {
+			TraceEntry te = traceEntries.get(i);
+			GeoPosition gp = te.getGeoPosition();
+			// The bucket keys are the positions themselves, so the orientation is
+			// discarded (or restored) in the traceEntries.
+			gp.setOrientation(discardOrientationInFingerprints ? Double.NaN : orientations[i]);
+			
+			Integer bucket = bucketIndex.get(gp);
+			if (bucket != null) { // a bucket for this position and orientation already exists
+				traceEntryBuckets.get(bucket).add(te);
+			} else { // no bucket yet for this position and orientation
+				ArrayList<TraceEntry> traceEntryBucket = new ArrayList<TraceEntry>();
+				traceEntryBucket.add(te);
+				bucketIndex.put(gp, traceEntryBuckets.size());
+				bucketKeys.add(gp);
+				traceEntryBuckets.add(traceEntryBucket);
+			}
+		}
+	}
+	
+	private static int[][] createPermutations(ArrayList<ArrayList<TraceEntry>> traceEntryBuckets) {
+		int[][] permutations = new int[traceEntryBuckets.size()][];
+		for (int i = 0; i < permutations.length; i++) {
+			permutations[i] = new int[traceEntryBuckets.get(i).size()];
+			for (int j = 0; j < permutations[i].length; j++)
+				permutations[i][j] = j;
+		}
+		return permutations;
 	}
 	
 	// Methods for getting private fields
@@ -225,10 +474,7 @@ public class TraceGenerator {
 		boolean first = true;
 		
 		// iterate through all the buckets
-		Iterator<GeoPosition> bucketIterator = offlineTraceEntryBuckets.keySet().iterator();
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			ArrayList<TraceEntry> traceEntryBucket = offlineTraceEntryBuckets.get(key);
+		for (ArrayList<TraceEntry> traceEntryBucket : offlineTraceEntryBuckets) {
 			// iterate through all the entries in the current bucket
 			for (int i = 0; i < traceEntryBucket.size(); i++) {
 				// iterate through all the samples in the current entry
@@ -265,10 +511,7 @@ public class TraceGenerator {
 			}
 		}
 		// again for the online set ...
-		bucketIterator = onlineTraceEntryBuckets.keySet().iterator();
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			ArrayList<TraceEntry> traceEntryBucket = onlineTraceEntryBuckets.get(key);
+		for (ArrayList<TraceEntry> traceEntryBucket : onlineTraceEntryBuckets) {
 			// iterate through all the entries in the current bucket
 			for (int i = 0; i < traceEntryBucket.size(); i++) {
 				// iterate through all the samples in the current entry
@@ -313,13 +556,112 @@ public class TraceGenerator {
 		return mms;
 	}
 	
-	private void deleteUnsuitableTraceEntries(int p, Hashtable<GeoPosition, ArrayList<TraceEntry>> traceEntryBuckets) {
-		Iterator<GeoPosition> bucketIterator = traceEntryBuckets.keySet().iterator();
+	private void filterWithMinimumMacBitset(int p) {
+		// Map every AP seen in any bucket to a dense index.
+		MACAddressIndex macIndex = new MACAddressIndex();
+		indexMacs(offlineTraceEntryBuckets, macIndex);
+		indexMacs(onlineTraceEntryBuckets, macIndex);
+		int words = macIndex.words();
+		
+		// Represent the AP set of every entry as a bitset.
+		long[][][] offlineMacSets = toMacBitsets(offlineTraceEntryBuckets, macIndex);
+		long[][][] onlineMacSets = toMacBitsets(onlineTraceEntryBuckets, macIndex);
 		
+		// The minimum MAC set is the AND over all buckets of the APs seen in the bucket.
+		long[] minimum = new long[words];
+		Arrays.fill(minimum, -1L);
+		intersectBucketUnions(offlineMacSets, minimum);
+		intersectBucketUnions(onlineMacSets, minimum);
+		
+		minimumMacSet = new ArrayList<MACAddress>();
+		for (int w = 0; w < words; w++) {
+			for (long bits = minimum[w]; bits != 0; bits &= bits - 1)
+				minimumMacSet.add(macIndex.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+		}
+		if (verbose) System.out.println("TraceGenerator: Minimum MAC set: " + minimumMacSet);
+		
+		// Delete the traceEntries missing more than p MACs of the minimum MAC set
+		// and trim the remaining ones to it.
+		filterAndTrimBuckets(p, offlineTraceEntryBuckets, offlineMacSets, minimum, macIndex);
+		filterAndTrimBuckets(p, onlineTraceEntryBuckets, onlineMacSets, minimum, macIndex);
+	}
+	
+	private static void indexMacs(ArrayList<ArrayList<TraceEntry>> traceEntryBuckets, MACAddressIndex macIndex) {
+		for (ArrayList<TraceEntry> traceEntryBucket : traceEntryBuckets) {
+			for (TraceEntry te : traceEntryBucket) {
+				for (MACAddress macAddress : te.getSignalStrengthSamples().keySet())
+					macIndex.add(macAddress);
+			}
+		}
+	}
+	
+	private static long[][][] toMacBitsets(ArrayList<ArrayList<TraceEntry>> traceEntryBuckets, MACAddressIndex macIndex) {
+		long[][][] macSets = new long[traceEntryBuckets.size()][][];
+		for (int b = 0; b < macSets.length; b++) {
+			ArrayList<TraceEntry> traceEntryBucket = traceEntryBuckets.get(b);
+			macSets[b] = new long[traceEntryBucket.size()][macIndex.words()];
+			for (int i = 0; i < traceEntryBucket.size(); i++) {
+				long[] macSet = macSets[b][i];
+				for (MACAddress macAddress : traceEntryBucket.get(i).getSignalStrengthSamples().keySet()) {
+					int index = macIndex.indexOf(macAddress);
+					macSet[index >>> 6] |= 1L << index;
+				}
+			}
+		}
+		return macSets;
+	}
+	
+	private static void intersectBucketUnions(long[][][] macSets, long[] minimum) {
+		long[] union = new long[minimum.length];
+		for (long[][] bucket : macSets) {
+			Arrays.fill(union, 0L);
+			for (long[] macSet : bucket) {
+				for (int w = 0; w < union.length; w++)
+					union[w] |= macSet[w];
+			}
+			for (int w = 0; w < minimum.length; w++)
+				minimum[w] &= union[w];
+		}
+	}
+	
+	private static void filterAndTrimBuckets(int p, ArrayList<ArrayList<TraceEntry>> traceEntryBuckets, long[][][] macSets, long[] minimum, MACAddressIndex macIndex) {
+		int[] additional = new int[macIndex.size()];
+		for (int b = 0; b < macSets.length; b++) {
+			ArrayList<TraceEntry> traceEntryBucket = traceEntryBuckets.get(b);
+			ArrayList<TraceEntry> kept = new ArrayList<TraceEntry>(traceEntryBucket.size());
+			for (int i = 0; i < macSets[b].length; i++) {
+				long[] macSet = macSets[b][i];
+				// Count the MACs of the minimum MAC set missing in this entry.
+				int missingMACs = 0;
+				for (int w = 0; w < minimum.length; w++)
+					missingMACs += Long.bitCount(minimum[w] & ~macSet[w]);
+				if (missingMACs > p)
+					continue;
+				
+				// Collect the additional MACs (not contained in the minimum MAC set) ...
+				int additionalMACs = 0;
+				for (int w = 0; w < minimum.length; w++) {
+					for (long bits = macSet[w] & ~minimum[w]; bits != 0; bits &= bits - 1)
+						additional[additionalMACs++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+				}
+				// ... and delete (additionalMACs - p) of them at random.
+				TraceEntry te = traceEntryBucket.get(i);
+				for (int j = 0; j < additionalMACs - p; j++) {
+					int k = j + Random.nextInt(additionalMACs - j);
+					int index = additional[k];
+					additional[k] = additional[j];
+					te.getSignalStrengthSamples().remove(macIndex.get(index));
+				}
+				kept.add(te);
+			}
+			traceEntryBucket.clear();
+			traceEntryBucket.addAll(kept);
+		}
+	}
+	
+	private void deleteUnsuitableTraceEntries(int p, ArrayList<ArrayList<TraceEntry>> traceEntryBuckets) {
 		// Iterate through all the buckets.
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			ArrayList<TraceEntry> traceEntryBucket = traceEntryBuckets.get(key);
+		for (ArrayList<TraceEntry> traceEntryBucket : traceEntryBuckets) {
 			// Iterate through all the entries in the current bucket.
 			for (int i = 0; i < traceEntryBucket.size(); i++) {
 				// Iterate through the minimum MAC set and count the MAC addresses
@@ -338,13 +680,9 @@ public class TraceGenerator {
 		}
 	}
 	
-	private void trimTraceEntries(int p, Hashtable<GeoPosition, ArrayList<TraceEntry>> traceEntryBuckets) {
-		Iterator<GeoPosition> bucketIterator = traceEntryBuckets.keySet().iterator();
-		
+	private void trimTraceEntries(int p, ArrayList<ArrayList<TraceEntry>> traceEntryBuckets) {
 		// Iterate through all the buckets.
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			ArrayList<TraceEntry> traceEntryBucket = traceEntryBuckets.get(key);
+		for (ArrayList<TraceEntry> traceEntryBucket : traceEntryBuckets) {
 			// Iterate through all the entries in the current bucket.
 			for (int i = 0; i < traceEntryBucket.size(); i++) {
 				// Iterate through all the samples in the current entry and count
@@ -377,58 +715,57 @@ public class TraceGenerator {
 		}
 	}
 	
-	private void chooseOnlineSetBuckets() {
+	private void groupOnlinePositions() {
 		// Every position should only be contained once in the online set.
 		// So let's first find out how many positions there are by sorting the
-		// index numbers of the traceEntryBuckets into positionBuckets.
-		Hashtable<GeoPosition, ArrayList<Integer>> positionBuckets = new Hashtable<GeoPosition, ArrayList<Integer>>();
-		// iterate through the onlineTraceEntryBuckets
-		Iterator<GeoPosition> bucketIterator = onlineTraceEntryBuckets.keySet().iterator();
-		int j = 0;
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
+		// index numbers of the online buckets into position groups.
+		LinkedHashMap<GeoPosition, ArrayList<Integer>> positionBuckets = new LinkedHashMap<GeoPosition, ArrayList<Integer>>();
+		for (int j = 0; j < onlineBucketKeys.size(); j++) {
+			GeoPosition key = onlineBucketKeys.get(j);
 			GeoPosition positionKey = new GeoPosition(key.getX(), key.getY(), key.getZ());
-			if (positionBuckets.containsKey(positionKey)) { // the bucket for this position already exists
-			 	positionBuckets.get(positionKey).add(j);
-			} else { // there's no bucket for this position yet
-				ArrayList<Integer> indexList = new ArrayList<Integer>();
-				indexList.add(j);
+			ArrayList<Integer> indexList = positionBuckets.get(positionKey);
+			if (indexList == null) { // there's no bucket for this position yet
+				indexList = new ArrayList<Integer>();
 				positionBuckets.put(positionKey, indexList);
 			}
-			j++;
+			indexList.add(j);
 		}
-		// Transform the positionBucket-Hashtable into an ArrayList
-		ArrayList<ArrayList<Integer>> positionArray = new ArrayList<ArrayList<Integer>>();
-		bucketIterator = positionBuckets.keySet().iterator();
-		while (bucketIterator.hasNext()) {
-			positionArray.add(positionBuckets.get(bucketIterator.next()));
+		// Transform the position groups into arrays
+		onlinePositionGroups = new int[positionBuckets.size()][];
+		int i = 0;
+		for (ArrayList<Integer> indexList : positionBuckets.values()) {
+			onlinePositionGroups[i] = new int[indexList.size()];
+			for (int j = 0; j < indexList.size(); j++)
+				onlinePositionGroups[i][j] = indexList.get(j);
+			i++;
 		}
+	}
+	
+	private void chooseOnlineSetBuckets() {
 		// Determine the number of positions to use in the online set.
-		long onlineSetPositionCount = Math.round(positionArray.size() * onlineRatio / 100.);
+		int positionCount = onlinePositionGroups.length;
+		long onlineSetPositionCount = Math.round(positionCount * onlineRatio / 100.);
 		if (onlineSetPositionCount == 0)
 			onlineSetPositionCount = 1;
-		// Create a list from 0 to the number of positions - 1
-		ArrayList<Integer> positionIndexList = new ArrayList<Integer>();
-		for (int i = 0; i < positionArray.size(); i++)
-			positionIndexList.add(i);
-		// Draw onlineSetPositionCount distinct index numbers at random.
-		onlineSetBuckets = new ArrayList<Integer>();
+		// Draw onlineSetPositionCount distinct positions at random (partial
+		// Fisher-Yates shuffle over the position indices) ...
+		Arrays.fill(onlineSetBuckets, false);
 		for (int i = 0; i < onlineSetPositionCount; i++) {
-			int pi = Random.nextInt(positionIndexList.size());
-			// from the chosen position, choose one bucket ...
-			int bi = Random.nextInt(positionArray.get(positionIndexList.get(pi)).size()); 
-			onlineSetBuckets.add(positionArray.get(positionIndexList.get(pi)).get(bi));
-			// ... and delete the position from the position list
-			positionIndexList.remove(pi);
+			int pi = i + Random.nextInt(positionCount - i);
+			int position = onlinePositionOrder[pi];
+			onlinePositionOrder[pi] = onlinePositionOrder[i];
+			onlinePositionOrder[i] = position;
+			// ... and from each chosen position, choose one bucket.
+			int[] group = onlinePositionGroups[position];
+			onlineSetBuckets[group[Random.nextInt(group.length)]] = true;
 		}
-		if (verbose) System.out.println("TraceGenerator: The online set will contain " + onlineSetBuckets.size() + " positions.");
+		if (verbose) System.out.println("TraceGenerator: The online set will contain " + onlineSetPositionCount + " positions.");
 	}
 	
 	private void checkBucketSizes() {
-		Iterator<GeoPosition> bucketIterator = offlineTraceEntryBuckets.keySet().iterator();
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			int i = offlineTraceEntryBuckets.get(key).size();
+		for (int b = 0; b < offlineTraceEntryBuckets.size(); b++) {
+			GeoPosition key = offlineBucketKeys.get(b);
+			int i = offlineTraceEntryBuckets.get(b).size();
 			if (i < offlineSize) {
 				throw new RuntimeException("Not enough traceEntries (" + i + ") for position " + key.getX() + "/" + key.getY() + "/" + key.getZ() + " and orientation " + key.getOrientation() + " to build the offline set!");
 			} else {
@@ -436,10 +773,9 @@ public class TraceGenerator {
 					if (warnings) System.out.println("TraceGenerator WARNING: All traceEntries for position " + key.getX() + "/" + key.getY() + "/" + key.getZ() + " and orientation " + key.getOrientation() + " in the offline tracefile need to be used. Randomization is impossible!");
 			}
 		}
-		bucketIterator = onlineTraceEntryBuckets.keySet().iterator();
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			int i = onlineTraceEntryBuckets.get(key).size();
+		for (int b = 0; b < onlineTraceEntryBuckets.size(); b++) {
+			GeoPosition key = onlineBucketKeys.get(b);
+			int i = onlineTraceEntryBuckets.get(b).size();
 			if (i < onlineSize) {
 				throw new RuntimeException("Not enough traceEntries (" + i + ") for position " + key.getX() + "/" + key.getY() + "/" + key.getZ() + " and orientation " + key.getOrientation() + " to build the online set!");
 			} else {
@@ -453,47 +789,35 @@ public class TraceGenerator {
 		// Generate the online set.
 		chooseOnlineSetBuckets();
 		if (verbose) System.out.println("TraceGenerator: Generating the online set ...");
-		onlineSet = new ArrayList<TraceEntry>();
-		// Iterate through all the buckets.
-		int bucketCount = 0;
-		//Iterator<GeoPosition> bucketIterator = onlineTraceEntryBuckets.keySet().iterator();
-		Iterator<GeoPosition> iterTrackingPos = trackingPos.iterator();
-		while (iterTrackingPos.hasNext()) {
-			GeoPosition key = iterTrackingPos.next();
-			ArrayList<TraceEntry> traceEntryBucket = onlineTraceEntryBuckets.get(key);
-			// If the current bucket was chosen to contribute to the online set,
-			// copy onlineSize of the entries (at random) into the online set and
-			// delete them from the bucket.
-			if (onlineSetBuckets.contains(bucketCount)) {
-				for (int i = 0; i < onlineSize; i++) {
-					// Get an index between 0 (incl.) and the size of the bucket (excl.).
-					int j = Random.nextInt(traceEntryBucket.size());
-					// Add the entry to the offline set.
-					onlineSet.add(traceEntryBucket.get(j));
-					// Delete the entry from the bucket.
-					traceEntryBucket.remove(j);
-				}
-			}
-			bucketCount++;
+		onlineSet = new ArrayList<TraceEntry>(onlineSetBuckets.length * onlineSize);
+		// Iterate through all the buckets in tracking order. If the current bucket
+		// was chosen to contribute to the online set, copy onlineSize of the
+		// entries (at random) into the online set.
+		for (int b = 0; b < onlineTraceEntryBuckets.size(); b++) {
+			if (onlineSetBuckets[b])
+				drawSample(onlineTraceEntryBuckets.get(b), onlineBucketPermutations[b], onlineSize, onlineSet);
 		}
 			
 		// Generate the offline set.
 		if (verbose) System.out.println("TraceGenerator: Generating the offline set ...");
-		offlineSet = new ArrayList<TraceEntry>();
-		Iterator<GeoPosition> bucketIterator = offlineTraceEntryBuckets.keySet().iterator();
-		while (bucketIterator.hasNext()) {
-			GeoPosition key = bucketIterator.next();
-			ArrayList<TraceEntry> traceEntryBucket = offlineTraceEntryBuckets.get(key);
-			// Copy offlineSize of the entries (at random) into the
-			// offline set and delete them from the bucket.
-			for (int i = 0; i < offlineSize; i++) {
-				// Get an index between 0 (incl.) and the size of the bucket (excl.).
-				int j = Random.nextInt(traceEntryBucket.size());
-				// Add the entry to the offline set.
-				offlineSet.add(traceEntryBucket.get(j));
-				// Delete the entry from the bucket.
-				traceEntryBucket.remove(j);
-			}
+		offlineSet = new ArrayList<TraceEntry>(offlineTraceEntryBuckets.size() * offlineSize);
+		// Copy offlineSize of the entries (at random) of every bucket into the offline set.
+		for (int b = 0; b < offlineTraceEntryBuckets.size(); b++)
+			drawSample(offlineTraceEntryBuckets.get(b), offlineBucketPermutations[b], offlineSize, offlineSet);
+	}
+	
+	private static void drawSample(ArrayList<TraceEntry> traceEntryBucket, int[] permutation, int size, ArrayList<TraceEntry> set) {
+		// Partial Fisher-Yates shuffle: after step i the first i + 1 slots of the
+		// permutation hold distinct entries drawn uniformly from the bucket. The
+		// permutation is reused by the next call, which shuffles it further.
+		for (int i = 0; i < size; i++) {
+			// Get an index between i (incl.) and the size of the bucket (excl.).
+			int j = i + Random.nextInt(permutation.length - i);
+			int entry = permutation[j];
+			permutation[j] = permutation[i];
+			permutation[i] = entry;
+			// Add the entry to the set.
+			set.add(traceEntryBucket.get(entry));
 		}
 	}
 }
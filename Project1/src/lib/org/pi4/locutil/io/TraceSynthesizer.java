@@ -0,0 +1,345 @@
+package org.pi4.locutil.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pi4.locutil.GeoPosition;
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.Random;
+
+/**
+ * Writes synthetic trace files in the format read by the <code>Parser</code>, e.g. to
+ * stress-test parsing, radio map construction and positioning with buildings much larger
+ * than the bundled data.
+ *
+ * The positions form a grid, the access points are spread at random over the area of the
+ * grid. For every position and orientation, <code>samples</code> scans are written. The
+ * signal strength of every access point follows the log-distance path loss model
+ * <code>P(d) = P(d0) - 10 * n * log10(d / d0)</code> plus gaussian shadowing and a body
+ * attenuation that grows when the device faces away from the access point. Readings below
+ * the sensitivity of the device are not written, so far away access points are inaudible.
+ *
+ * The lines are generated in parallel (in chunks of about <code>CHUNK_BYTES</code>) and
+ * written in order while they are generated, so memory does not depend on the size of the
+ * file.
+ */
+public class TraceSynthesizer {
+	private static final long START_TIMESTAMP = 1187915994709L;
+	private static final double[] FREQUENCIES = { 2.412E9, 2.437E9, 2.462E9 };
+	// Estimated size of the lines of a chunk, and upper bound of its initial buffer
+	private static final long CHUNK_BYTES = 1 << 20;
+	private static final long MAX_CHUNK_CAPACITY = 1 << 24;
+
+	private int positions = 130;
+	private int accessPoints = 11;
+	private int orientations = 8;
+	private int samples = 110;
+	private double gridSpacing = 1.5;
+	private double pd0 = -33.77;
+	private double pathLossExponent = 3.415;
+	private double d0 = 1.0;
+	private double shadowing = 4.0;
+	private double bodyAttenuation = 5.0;
+	private double sensitivity = -95.0;
+	private double noise = -97.0;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long seed = Random.nextLong();
+	private MACAddress deviceId = MACAddress.parse("00:02:2D:21:0F:33");
+
+	public void setPositions(int positions) {
+		if (positions < 1)
+			throw new IllegalArgumentException("positions must be >= 1");
+		this.positions = positions;
+	}
+
+	public void setAccessPoints(int accessPoints) {
+		if (accessPoints < 1)
+			throw new IllegalArgumentException("accessPoints must be >= 1");
+		this.accessPoints = accessPoints;
+	}
+
+	/**
+	 * Sets the number of orientations, spread evenly over 360 degrees.
+	 * A value of 0 writes the scans without orientation.
+	 *
+	 * @param orientations	number of orientations
+	 */
+	public void setOrientations(int orientations) {
+		if (orientations < 0)
+			throw new IllegalArgumentException("orientations must be >= 0");
+		this.orientations = orientations;
+	}
+
+	/**
+	 * Sets the number of scans per position and orientation.
+	 *
+	 * @param samples	number of scans
+	 */
+	public void setSamples(int samples) {
+		if (samples < 1)
+			throw new IllegalArgumentException("samples must be >= 1");
+		this.samples = samples;
+	}
+
+	public void setGridSpacing(double gridSpacing) {
+		this.gridSpacing = gridSpacing;
+	}
+
+	/**
+	 * Sets the parameters of the log-distance path loss model.
+	 *
+	 * @param pd0	signal strength at the reference distance [dBm]
+	 * @param pathLossExponent	path loss exponent n
+	 * @param d0	reference distance [m]
+	 */
+	public void setPathLossModel(double pd0, double pathLossExponent, double d0) {
+		this.pd0 = pd0;
+		this.pathLossExponent = pathLossExponent;
+		this.d0 = d0;
+	}
+
+	/**
+	 * Sets the standard deviation of the gaussian shadowing.
+	 *
+	 * @param shadowing	standard deviation [dB]
+	 */
+	public void setShadowing(double shadowing) {
+		this.shadowing = shadowing;
+	}
+
+	/**
+	 * Sets the attenuation when the device faces away from an access point.
+	 *
+	 * @param bodyAttenuation	attenuation [dB]
+	 */
+	public void setBodyAttenuation(double bodyAttenuation) {
+		this.bodyAttenuation = bodyAttenuation;
+	}
+
+	public void setSensitivity(double sensitivity) {
+		this.sensitivity = sensitivity;
+	}
+
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be >= 1");
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the seed. The same seed and settings always produce the same file.
+	 *
+	 * @param seed	the seed
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setDeviceId(MACAddress deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	/**
+	 * Returns the number of lines <code>write</code> produces with the current settings.
+	 *
+	 * @return	number of lines
+	 */
+	public long getLineCount() {
+		return (long) positions * Math.max(orientations, 1) * samples;
+	}
+
+	/**
+	 * Returns the position with the specified index.
+	 *
+	 * @param index	0 <= index < positions
+	 * @return	the position
+	 */
+	public GeoPosition getPosition(int index) {
+		int columns = columns();
+		return new GeoPosition((index % columns) * gridSpacing, (index / columns) * gridSpacing, 0.0);
+	}
+
+	/**
+	 * Returns the position of the access point with the specified index.
+	 *
+	 * @param index	0 <= index < accessPoints
+	 * @return	the position
+	 */
+	public GeoPosition getAccessPointPosition(int index) {
+		double[][] aps = accessPointPositions();
+		return new GeoPosition(aps[index][0], aps[index][1], 0.0);
+	}
+
+	/**
+	 * Returns the MAC address of the access point with the specified index.
+	 *
+	 * @param index	0 <= index < accessPoints
+	 * @return	the MAC address
+	 */
+	public MACAddress getAccessPoint(int index) {
+		return new MACAddress(new short[] { 0x00, 0x14, 0xBF, (short) ((index >>> 16) & 0xFF), (short) ((index >>> 8) & 0xFF), (short) (index & 0xFF) });
+	}
+
+	/**
+	 * Writes the trace file.
+	 *
+	 * @param file	the output file
+	 * @throws IOException	if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the trace to the specified stream.
+	 *
+	 * @param out	the output stream (not closed)
+	 * @throws IOException	if the stream cannot be written
+	 */
+	public void write(OutputStream out) throws IOException {
+		final double[][] aps = accessPointPositions();
+		final String[] apNames = new String[accessPoints];
+		for (int a = 0; a < accessPoints; a++)
+			apNames[a] = getAccessPoint(a).toString();
+
+		out.write(("# synthetic trace: " + positions + " positions, " + accessPoints + " access points, "
+				+ orientations + " orientations, " + samples + " samples\n").getBytes(StandardCharsets.US_ASCII));
+
+		final long linesPerChunk = Math.max(1, CHUNK_BYTES / estimatedLineBytes());
+		long chunks = (getLineCount() + linesPerChunk - 1) / linesPerChunk;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// At most 2 * threads chunks are generated ahead of the writer.
+			ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+			long next = 0;
+			while (next < chunks || !pending.isEmpty()) {
+				while (next < chunks && pending.size() < 2 * threads) {
+					final long chunk = next++;
+					pending.add(executor.submit(new Callable<byte[]>() {
+						public byte[] call() {
+							return generateChunk(chunk, linesPerChunk, aps, apNames);
+						}
+					}));
+				}
+				out.write(pending.poll().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating the trace", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not generate the trace", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		out.flush();
+	}
+
+	private byte[] generateChunk(long chunk, long linesPerChunk, double[][] aps, String[] apNames) {
+		// Every chunk has its own generator, so the result does not depend on the scheduling.
+		java.util.Random random = new java.util.Random(seed * 31 + chunk);
+		int orientationCount = Math.max(orientations, 1);
+		long linesPerPosition = (long) orientationCount * samples;
+		long first = chunk * linesPerChunk;
+		long last = Math.min(first + linesPerChunk, getLineCount());
+		String id = deviceId.toString();
+
+		StringBuilder sb = new StringBuilder((int) Math.min((last - first) * estimatedLineBytes(), MAX_CHUNK_CAPACITY));
+		int p = -1;
+		GeoPosition pos = null;
+		for (long line = first; line < last; line++) {
+			if (line / linesPerPosition != p) {
+				p = (int) (line / linesPerPosition);
+				pos = getPosition(p);
+			}
+			int o = (int) (line / samples % orientationCount);
+			double degree = orientations == 0 ? Double.NaN : o * 360.0 / orientations;
+			sb.append("t=").append(START_TIMESTAMP + 100 * line);
+			sb.append(";pos=").append(pos.getX()).append(',').append(pos.getY()).append(',').append(pos.getZ());
+			sb.append(";id=").append(id);
+			if (orientations > 0)
+				sb.append(";degree=").append(degree);
+			for (int a = 0; a < aps.length; a++) {
+				double rss = signalStrength(pos, aps[a], degree, random);
+				if (rss < sensitivity)
+					continue;
+				sb.append(';').append(apNames[a]).append('=').append(Math.round(rss));
+				sb.append(',').append(FREQUENCIES[a % FREQUENCIES.length]);
+				sb.append(",3,").append(Math.round(noise));
+			}
+			sb.append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// Upper estimate of the length of a line in which every access point is heard
+	private long estimatedLineBytes() {
+		return 60 + 35L * accessPoints;
+	}
+
+	private double signalStrength(GeoPosition pos, double[] ap, double degree, java.util.Random random) {
+		double dx = ap[0] - pos.getX();
+		double dy = ap[1] - pos.getY();
+		double d = Math.max(Math.sqrt(dx * dx + dy * dy), d0);
+		double rss = pd0 - 10 * pathLossExponent * Math.log10(d / d0) + shadowing * random.nextGaussian();
+		if (!Double.isNaN(degree)) {
+			// 0 when facing the access point, bodyAttenuation when facing away from it
+			double angle = Math.toRadians(degree) - Math.atan2(dy, dx);
+			rss -= bodyAttenuation * (1 - Math.cos(angle)) / 2;
+		}
+		return rss;
+	}
+
+	private int columns() {
+		return (int) Math.ceil(Math.sqrt(positions));
+	}
+
+	private double[][] accessPointPositions() {
+		java.util.Random random = new java.util.Random(seed);
+		int columns = columns();
+		double width = (columns - 1) * gridSpacing;
+		double height = ((positions - 1) / columns) * gridSpacing;
+		double[][] aps = new double[accessPoints][2];
+		for (int a = 0; a < accessPoints; a++) {
+			aps[a][0] = random.nextDouble() * width;
+			aps[a][1] = random.nextDouble() * height;
+		}
+		return aps;
+	}
+
+	/**
+	 * Writes a synthetic trace file.
+	 *
+	 * Usage: TraceSynthesizer file positions accessPoints orientations samples [seed]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 5) {
+			System.err.println("Usage: TraceSynthesizer file positions accessPoints orientations samples [seed]");
+			System.exit(1);
+		}
+		TraceSynthesizer synthesizer = new TraceSynthesizer();
+		synthesizer.setPositions(Integer.parseInt(args[1]));
+		synthesizer.setAccessPoints(Integer.parseInt(args[2]));
+		synthesizer.setOrientations(Integer.parseInt(args[3]));
+		synthesizer.setSamples(Integer.parseInt(args[4]));
+		if (args.length > 5)
+			synthesizer.setSeed(Long.parseLong(args[5]));
+		long start = System.currentTimeMillis();
+		synthesizer.write(new File(args[0]));
+		System.out.println("TraceSynthesizer: " + synthesizer.getLineCount() + " lines written to " + args[0] + " in " + (System.currentTimeMillis() - start) + " ms.");
+	}
+}
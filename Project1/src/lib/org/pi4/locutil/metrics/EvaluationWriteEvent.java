@@ -0,0 +1,24 @@
+package org.pi4.locutil.metrics;
+
+/**
+ * Flight recorder event for writing an evaluation (cumulative distribution function) file.
+ * Disabled by default, see <code>positioning.jfc</code>.
+ */
+public class EvaluationWriteEvent extends FlightEvent {
+	private static final Type TYPE = new Type("positioning.EvaluationWrite", "Evaluation Write",
+			"Cumulative distribution function of the errors written to a file",
+			field(String.class, "file", "File"),
+			field(int.class, "points", "Points"));
+
+	public String file;
+
+	public int points;
+
+	public EvaluationWriteEvent() {
+		super(TYPE);
+	}
+
+	Object[] values() {
+		return new Object[] { file, points };
+	}
+}
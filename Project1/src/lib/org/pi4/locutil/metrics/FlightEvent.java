@@ -0,0 +1,149 @@
+package org.pi4.locutil.metrics;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base of the flight recorder events of the positioning pipeline, see
+ * <code>positioning.jfc</code>. The project builds for Java 8, whose API has no
+ * <code>jdk.jfr</code>, so the events do not extend <code>jdk.jfr.Event</code>: every event
+ * type is defined at run time through reflection on <code>jdk.jfr.EventFactory</code>.
+ * On a JVM without <code>jdk.jfr</code> (Java 8 before 8u262) the events do nothing.
+ *
+ * The event types are disabled by default, so an event costs a few reflective calls
+ * unless a recording enables it. The fields of an event are copied to the flight
+ * recorder event by <code>commit()</code>.
+ */
+public abstract class FlightEvent {
+	private final Type type;
+	private final Object event; // a jdk.jfr.Event, or null without jdk.jfr
+
+	FlightEvent(Type type) {
+		this.type = type;
+		this.event = type.newEvent();
+	}
+
+	public void begin() {
+		if (event != null)
+			type.invoke(type.begin, event);
+	}
+
+	public void end() {
+		if (event != null)
+			type.invoke(type.end, event);
+	}
+
+	/**
+	 * Returns whether the event is enabled and lasted at least its threshold, i.e.
+	 * whether the fields need to be set and <code>commit()</code> called.
+	 */
+	public boolean shouldCommit() {
+		return event != null && (Boolean) type.invoke(type.shouldCommit, event);
+	}
+
+	public void commit() {
+		if (event == null)
+			return;
+		Object[] values = values();
+		for (int i = 0; i < values.length; i++)
+			type.invoke(type.set, event, i, values[i]);
+		type.invoke(type.commit, event);
+	}
+
+	/**
+	 * Returns the values of the fields, in the order of the fields of the type.
+	 */
+	abstract Object[] values();
+
+	static Field field(Class<?> type, String name, String label) {
+		return new Field(type, name, label, null);
+	}
+
+	static Field field(Class<?> type, String name, String label, String description) {
+		return new Field(type, name, label, description);
+	}
+
+	// A field of an event type
+	static final class Field {
+		final Class<?> type;
+		final String name;
+		final String label;
+		final String description;
+
+		Field(Class<?> type, String name, String label, String description) {
+			this.type = type;
+			this.name = name;
+			this.label = label;
+			this.description = description;
+		}
+	}
+
+	// An event type in the "Positioning" category: its jdk.jfr.EventFactory and the
+	// methods of jdk.jfr.Event, or nothing without jdk.jfr
+	static final class Type {
+		private final Object factory; // registers the type as long as it is referenced
+		private Method newEvent;
+		private Method begin;
+		private Method end;
+		private Method shouldCommit;
+		private Method set;
+		private Method commit;
+
+		Type(String name, String label, String description, Field... fields) {
+			Object eventFactory = null;
+			try {
+				Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+				Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+				annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+				annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Positioning" }));
+				annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Description"), description));
+				annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Enabled"), Boolean.FALSE));
+
+				Constructor<?> newValue = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+				List<Object> values = new ArrayList<Object>();
+				for (Field field : fields) {
+					List<Object> fieldAnnotations = new ArrayList<Object>();
+					fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), field.label));
+					if (field.description != null)
+						fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Description"), field.description));
+					values.add(newValue.newInstance(field.type, field.name, fieldAnnotations));
+				}
+
+				Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+				eventFactory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, values);
+				newEvent = factoryClass.getMethod("newEvent");
+				Class<?> eventClass = Class.forName("jdk.jfr.Event");
+				begin = eventClass.getMethod("begin");
+				end = eventClass.getMethod("end");
+				shouldCommit = eventClass.getMethod("shouldCommit");
+				set = eventClass.getMethod("set", int.class, Object.class);
+				commit = eventClass.getMethod("commit");
+			} catch (ReflectiveOperationException e) {
+				eventFactory = null; // no jdk.jfr: the events do nothing
+			}
+			factory = eventFactory;
+		}
+
+		Object newEvent() {
+			return factory == null ? null : invoke(newEvent, factory);
+		}
+
+		Object invoke(Method method, Object target, Object... args) {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new IllegalStateException(cause);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package org.pi4.locutil.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram in the style of HdrHistogram. Values (nanoseconds) below
+ * 128 are counted exactly; above, every power of two is split into 64 linear sub-buckets,
+ * so quantiles have a relative error below 1.6% over the whole <code>long</code> range.
+ * Recording is one index computation and one atomic increment, without allocation.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 64
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS; // 128
+	private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray counts;
+	private final AtomicLongArray totals; // {count, sum, max}
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+		counts = new AtomicLongArray(BUCKETS);
+		totals = new AtomicLongArray(3);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos	the latency in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		if (!Metrics.isEnabled())
+			return;
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		totals.incrementAndGet(0);
+		totals.addAndGet(1, nanos);
+		long max;
+		while (nanos > (max = totals.get(2))) {
+			if (totals.compareAndSet(2, max, nanos))
+				break;
+		}
+	}
+
+	/**
+	 * Records the time elapsed since the specified <code>System.nanoTime()</code>.
+	 *
+	 * @param startNanos	start time
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return totals.get(0);
+	}
+
+	/**
+	 * Returns the average latency in nanoseconds, 0 if nothing has been recorded.
+	 */
+	public double getMean() {
+		long count = totals.get(0);
+		return count == 0 ? 0.0 : (double) totals.get(1) / count;
+	}
+
+	public long getMax() {
+		return totals.get(2);
+	}
+
+	/**
+	 * Returns the latency at the specified quantile in nanoseconds.
+	 *
+	 * @param q	the quantile, 0 <= q <= 1
+	 * @return	the latency, 0 if nothing has been recorded
+	 */
+	public long getQuantile(double q) {
+		if (!(q >= 0.0) || !(q <= 1.0))
+			throw new IllegalArgumentException("Quantile must be 0 <= q <= 1.");
+		long count = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(q * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		for (int i = 0; i < 3; i++)
+			totals.set(i, 0);
+	}
+
+	static int index(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	// Highest value counted in bucket i
+	static long highestValue(int index) {
+		if (index < LINEAR_LIMIT)
+			return index;
+		int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,201 @@
+package org.pi4.locutil.metrics;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the latency histograms and counters of the positioning pipeline.
+ *
+ * Histograms (per call, in nanoseconds):
+ * <ul>
+ * <li><code>parser.parse</code> - parsing one trace file</li>
+ * <li><code>tracegenerator.generate</code> - generating the offline and online sets</li>
+ * <li><code>positioning.radiomap</code> - building one radio map (joint signal strengths)</li>
+ * <li><code>positioning.query</code> - locating one online position</li>
+ * <li><code>positioning.experiment</code> - one complete positioning run</li>
+ * <li><code>fileparser.write</code>, <code>fileparser.read</code> - writing/reading an output file</li>
+ * </ul>
+ * Counters:
+ * <ul>
+ * <li><code>parser.entries</code> - trace entries parsed</li>
+ * <li><code>positioning.queries</code> - positions located</li>
+ * <li><code>positioning.fingerprints_scanned</code> - fingerprints a distance was computed for</li>
+ * <li><code>positioning.candidates_pruned</code> - fingerprints discarded without ending up in an estimation</li>
+ * </ul>
+ *
+ * Recording is enabled by default and can be switched off with <code>setEnabled(false)</code>.
+ * The values can be read programmatically or dumped as text or JSON, once or periodically.
+ */
+public class Metrics {
+	private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private static volatile boolean enabled = true;
+	private static ScheduledExecutorService dumper;
+	private static ScheduledFuture<?> dump;
+
+	private Metrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * Returns the histogram with the specified name, creating it if necessary.
+	 *
+	 * @param name	the name
+	 * @return	the histogram
+	 */
+	public static LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new LatencyHistogram(name));
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the counter with the specified name, creating it if necessary.
+	 *
+	 * @param name	the name
+	 * @return	the counter
+	 */
+	public static LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/**
+	 * Adds the specified value to a counter, if recording is enabled.
+	 *
+	 * @param counter	the counter
+	 * @param value	the value
+	 */
+	public static void count(LongAdder counter, long value) {
+		if (enabled)
+			counter.add(value);
+	}
+
+	/**
+	 * Resets all histograms and counters.
+	 */
+	public static void reset() {
+		for (LatencyHistogram histogram : histograms.values())
+			histogram.reset();
+		for (LongAdder counter : counters.values())
+			counter.reset();
+	}
+
+	/**
+	 * Returns all histograms and counters as text, one per line. Latencies are given in microseconds.
+	 *
+	 * @return	the text
+	 */
+	public static String toText() {
+		StringBuffer sb = new StringBuffer();
+		for (LatencyHistogram h : new TreeMap<String, LatencyHistogram>(histograms).values()) {
+			sb.append(h.getName());
+			sb.append(" count=").append(h.getCount());
+			sb.append(" mean=").append(micros(h.getMean()));
+			sb.append(" p50=").append(micros(h.getQuantile(0.5)));
+			sb.append(" p90=").append(micros(h.getQuantile(0.9)));
+			sb.append(" p99=").append(micros(h.getQuantile(0.99)));
+			sb.append(" max=").append(micros(h.getMax()));
+			sb.append(" [us]\n");
+		}
+		for (Map.Entry<String, LongAdder> c : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			sb.append(c.getKey()).append(' ').append(c.getValue().sum()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns all histograms and counters as a JSON object. Latencies are given in microseconds.
+	 *
+	 * @return	the JSON text
+	 */
+	public static String toJSON() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("{\"histograms\":{");
+		boolean first = true;
+		for (LatencyHistogram h : new TreeMap<String, LatencyHistogram>(histograms).values()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('"').append(h.getName()).append("\":{");
+			sb.append("\"count\":").append(h.getCount());
+			sb.append(",\"mean_us\":").append(micros(h.getMean()));
+			sb.append(",\"p50_us\":").append(micros(h.getQuantile(0.5)));
+			sb.append(",\"p90_us\":").append(micros(h.getQuantile(0.9)));
+			sb.append(",\"p99_us\":").append(micros(h.getQuantile(0.99)));
+			sb.append(",\"max_us\":").append(micros(h.getMax()));
+			sb.append('}');
+		}
+		sb.append("},\"counters\":{");
+		first = true;
+		for (Map.Entry<String, LongAdder> c : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			if (!first) sb.append(',');
+			first = false;
+			sb.append('"').append(c.getKey()).append("\":").append(c.getValue().sum());
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+
+	/**
+	 * Starts dumping all histograms and counters to the specified stream periodically
+	 * (on a daemon thread). A running dump is stopped first.
+	 *
+	 * @param out	the stream
+	 * @param periodMillis	the period in milliseconds
+	 * @param json	<code>true</code> for JSON (one object per line), <code>false</code> for text
+	 */
+	public static synchronized void startDump(final PrintStream out, long periodMillis, final boolean json) {
+		stopDump();
+		if (dumper == null) {
+			dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "metrics-dump");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		dump = dumper.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				out.println(json ? toJSON() : toText());
+				out.flush();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the periodic dump, if any.
+	 */
+	public static synchronized void stopDump() {
+		if (dump != null) {
+			dump.cancel(false);
+			dump = null;
+		}
+	}
+
+	private static double micros(double nanos) {
+		return Math.round(nanos / 10.0) / 100.0;
+	}
+}
@@ -0,0 +1,32 @@
+package org.pi4.locutil.metrics;
+
+/**
+ * Flight recorder event for a chunk of lines read by the <code>Parser</code>.
+ * Disabled by default, see <code>positioning.jfc</code>.
+ */
+public class ParserChunkEvent extends FlightEvent {
+	private static final Type TYPE = new Type("positioning.ParserChunk", "Parser Chunk",
+			"A chunk of trace lines parsed",
+			field(String.class, "file", "File"),
+			field(int.class, "lines", "Lines"),
+			field(int.class, "entries", "Entries", "Trace entries kept after filtering"));
+
+	/**
+	 * Number of lines per event.
+	 */
+	public static final int LINES = 4096;
+
+	public String file;
+
+	public int lines;
+
+	public int entries;
+
+	public ParserChunkEvent() {
+		super(TYPE);
+	}
+
+	Object[] values() {
+		return new Object[] { file, lines, entries };
+	}
+}
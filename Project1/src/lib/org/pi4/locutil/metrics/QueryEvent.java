@@ -0,0 +1,27 @@
+package org.pi4.locutil.metrics;
+
+/**
+ * Flight recorder event for locating one position.
+ * Disabled by default, see <code>positioning.jfc</code>.
+ */
+public class QueryEvent extends FlightEvent {
+	private static final Type TYPE = new Type("positioning.Query", "Positioning Query",
+			"One position located by nearest neighbor search",
+			field(String.class, "method", "Method"),
+			field(int.class, "candidates", "Candidates", "Fingerprints the distance was computed for"),
+			field(int.class, "k", "k"));
+
+	public String method;
+
+	public int candidates;
+
+	public int k;
+
+	public QueryEvent() {
+		super(TYPE);
+	}
+
+	Object[] values() {
+		return new Object[] { method, candidates, k };
+	}
+}
@@ -0,0 +1,27 @@
+package org.pi4.locutil.metrics;
+
+/**
+ * Flight recorder event for building a radio map from trace entries.
+ * Disabled by default, see <code>positioning.jfc</code>.
+ */
+public class RadioMapEvent extends FlightEvent {
+	private static final Type TYPE = new Type("positioning.RadioMap", "Radio Map",
+			"Radio map (joint signal strengths per position) built from trace entries",
+			field(String.class, "method", "Method"),
+			field(int.class, "entries", "Trace Entries"),
+			field(int.class, "positions", "Positions"));
+
+	public String method;
+
+	public int entries;
+
+	public int positions;
+
+	public RadioMapEvent() {
+		super(TYPE);
+	}
+
+	Object[] values() {
+		return new Object[] { method, entries, positions };
+	}
+}
@@ -28,9 +28,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.pi4.locutil.GeoPosition;
 import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+import org.pi4.locutil.metrics.ParserChunkEvent;
+import org.pi4.locutil.trace.macfilter.CompiledMacFilter;
 import org.pi4.locutil.trace.macfilter.MacFilter;
 import org.pi4.locutil.trace.macfilter.MacFilterExplizit;
 import org.pi4.locutil.trace.orientationfilter.OrientationFilter;
@@ -46,10 +51,13 @@ import org.pi4.locutil.trace.positionfilter.PositionFilterAllowAll;
  * @author lubberger
  */
 public class Parser {
+	private static final LatencyHistogram PARSE_TIME = Metrics.histogram("parser.parse");
+	private static final LongAdder ENTRIES = Metrics.counter("parser.entries");
 
 	double precision;
 	private File file;
 	private MacFilter mf;
+	private volatile CompiledMacFilter compiledMacFilter; // of mf, see macFilter()
 	private OrientationFilter of;
 	private PositionFilter psf;
 	private boolean skipAdHocNodes = true;
@@ -64,9 +72,14 @@ public class Parser {
 		psf = new PositionFilterAllowAll();
 	}
 
-    public Parser() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-    }
+	/**
+	 * Creates a parser without a file, for <code>parseLine</code>.
+	 */
+	public Parser() {
+		mf = new MacFilterExplizit();
+		of = new OrientationFilter();
+		psf = new PositionFilterAllowAll();
+	}
 	
 	public void setSkipAdHocNodes(boolean skip) {
 		skipAdHocNodes = skip;
@@ -78,6 +91,7 @@ public class Parser {
 	
 	public void setMacFilter(MacFilter mf) {
 		this.mf = mf;
+		compiledMacFilter = null;
 	}
 	
 	public MacFilter getMacFilter() {
@@ -98,6 +112,7 @@ public class Parser {
 	
 	public void resetMacFilter() {
 		mf = new MacFilterExplizit();
+		compiledMacFilter = null;
 	}
 	
 	public void setPositionFilter(PositionFilter psf) {
@@ -117,82 +132,139 @@ public class Parser {
 	}
 	
 	public ArrayList<TraceEntry> parse() throws IOException, NumberFormatException {
+		if (file == null)
+			throw new IllegalStateException("No file to parse.");
+		long start = System.nanoTime();
 				
 		ArrayList<TraceEntry> list = new ArrayList<TraceEntry>();
+		CompiledMacFilter macFilter = macFilter();
+		boolean positionFilter = !psf.isEmpty();
 		
 		BufferedReader in = new BufferedReader(new FileReader(file));
 		String line;
+		ParserChunkEvent chunk = new ParserChunkEvent();
+		chunk.begin();
+		int chunkLines = 0;
+		int chunkStart = 0;
 		
 		try {
 			// Process each line.
 			while ((line = in.readLine()) != null) {
-				boolean skip = false;
-				if (line.startsWith("#"))
-					continue;
-				
-				TraceEntry entry = new TraceEntry();		
-				String[] components = line.split(";");
-				for (String s: components) {
-					String[] kv = s.split("=", 2);
-					if (kv.length != 2)
-						throw new IOException("Expected key=value, found: " + s);
-					String key = kv[0];
-					String value = kv[1];
-					if (key.equals("t")) {
-						entry.setTimestamp(Long.parseLong(value));
-					} else if (key.equals("id")) {
-						entry.setId(MACAddress.parse(value));
-					} else if (key.equals("pos")) {
-						String[] coords = value.split(",", 3);
-						if (coords.length != 3)
-							throw new IOException("Expected x, y, z coordinates, found: " + value);
-						entry.setGeoPosition(new GeoPosition(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]), Double.parseDouble(coords[2])));
-						if (!psf.isEmpty()) {
-							if (! psf.contains(entry.getGeoPosition())) {
-								skip = true;
-							}
-						}
-					} else if (key.equals("degree")) {
-						double degree = Math.round(Double.parseDouble(value) / precision) * precision;
-						if (degree == 360) degree = 0;
-						if (!of.isEmpty()) {
-							if (!of.contains(degree)) continue;
-						}
-						entry.getGeoPosition().setOrientation(degree); // assume position comes first
-					} else if (key.equals("speed")) {
-						double speed = Double.parseDouble(value);
-						entry.setSpeed(speed);
-					} else { // assume it is a MAC to SSI mapping
-						try {
-							MACAddress mac = MACAddress.parse(key);
-							if (!mf.isEmpty()) {
-								if (!mf.contains(mac)) continue;
-							}
-							String[] parts = value.split(",");
-							// skip ad-hoc-nodes
-							if (skipAdHocNodes && ((parts.length == 3) || (parts.length == 4))) {
-								if (parts[2].equals("1"))
-									continue;
-							}
-							if ((parts.length == 2) || (parts.length == 3)) {
-								// put mac, signalstrength, and channel
-								entry.getSignalStrengthSamples().put(mac, Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
-							} else if (parts.length == 4) {
-								// put mac, signalstrength, noise, and channel
-								entry.getSignalStrengthSamples().put(mac, Double.parseDouble(parts[0]), Double.parseDouble(parts[3]), Double.parseDouble(parts[1]));
-							}
-						} catch (IllegalArgumentException ex) {
-							System.err.println(s);
-							throw new IOException("Expected MAC address");
-						}
-					}
+				if (chunkLines == ParserChunkEvent.LINES) {
+					commit(chunk, chunkLines, list.size() - chunkStart);
+					chunk = new ParserChunkEvent();
+					chunk.begin();
+					chunkLines = 0;
+					chunkStart = list.size();
 				}
-				if (skip) continue;
-				list.add(entry);
+				chunkLines++;
+				TraceEntry entry = parseLine(line, macFilter, positionFilter);
+				if (entry != null)
+					list.add(entry);
 			}
+			commit(chunk, chunkLines, list.size() - chunkStart);
 		} finally {
 			in.close();
 		}
+		PARSE_TIME.recordSince(start);
+		Metrics.count(ENTRIES, list.size());
 		return list;
 	}
+
+	/**
+	 * Parses a single line in the format of the trace files with the filters of this parser.
+	 * 
+	 * @param line	the line
+	 * @return	the trace entry, or null for comments and positions rejected by the position filter
+	 * @throws IOException	if the line is malformed
+	 */
+	public TraceEntry parseLine(String line) throws IOException {
+		return parseLine(line, macFilter(), !psf.isEmpty());
+	}
+	
+	// The compiled MAC filter, or null for an empty filter, which lets all MAC addresses
+	// pass. It is only compiled again when the filter is set or has been added to.
+	private CompiledMacFilter macFilter() {
+		if (mf.isEmpty())
+			return null;
+		CompiledMacFilter compiled = compiledMacFilter;
+		if (compiled == null || !compiled.isCurrent(mf)) {
+			compiled = CompiledMacFilter.compile(mf);
+			compiledMacFilter = compiled;
+		}
+		return compiled;
+	}
+	
+	private TraceEntry parseLine(String line, CompiledMacFilter macFilter, boolean positionFilter) throws IOException {
+		if (line.startsWith("#"))
+			return null;
+		
+		TraceEntry entry = new TraceEntry();
+		String[] components = line.split(";");
+		for (String s: components) {
+			String[] kv = s.split("=", 2);
+			if (kv.length != 2)
+				throw new IOException("Expected key=value, found: " + s);
+			String key = kv[0];
+			String value = kv[1];
+			if (key.equals("t")) {
+				entry.setTimestamp(Long.parseLong(value));
+			} else if (key.equals("id")) {
+				entry.setId(MACAddress.parse(value));
+			} else if (key.equals("pos")) {
+				String[] coords = value.split(",", 3);
+				if (coords.length != 3)
+					throw new IOException("Expected x, y, z coordinates, found: " + value);
+				entry.setGeoPosition(new GeoPosition(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]), Double.parseDouble(coords[2])));
+				// Reject the line before the rest of it is decoded.
+				if (positionFilter) {
+					if (!psf.contains(entry.getGeoPosition())) return null;
+				}
+			} else if (key.equals("degree")) {
+				double degree = Math.round(Double.parseDouble(value) / precision) * precision;
+				if (degree == 360) degree = 0;
+				if (!of.isEmpty()) {
+					if (!of.contains(degree)) continue;
+				}
+				entry.getGeoPosition().setOrientation(degree); // assume position comes first
+			} else if (key.equals("speed")) {
+				double speed = Double.parseDouble(value);
+				entry.setSpeed(speed);
+			} else { // assume it is a MAC to SSI mapping
+				try {
+					long mac = MACAddress.parseLong(key);
+					if (macFilter != null) {
+						if (!macFilter.contains(mac)) continue;
+					}
+					String[] parts = value.split(",");
+					// skip ad-hoc-nodes
+					if (skipAdHocNodes && ((parts.length == 3) || (parts.length == 4))) {
+						if (parts[2].equals("1"))
+							continue;
+					}
+					if ((parts.length == 2) || (parts.length == 3)) {
+						// put mac, signalstrength, and channel
+						entry.getSignalStrengthSamples().put(MACAddress.valueOf(mac), Double.parseDouble(parts[0]), Double.parseDouble(parts[1]));
+					} else if (parts.length == 4) {
+						// put mac, signalstrength, noise, and channel
+						entry.getSignalStrengthSamples().put(MACAddress.valueOf(mac), Double.parseDouble(parts[0]), Double.parseDouble(parts[3]), Double.parseDouble(parts[1]));
+					}
+				} catch (IllegalArgumentException ex) {
+					System.err.println(s);
+					throw new IOException("Expected MAC address");
+				}
+			}
+		}
+		return entry;
+	}
+
+	private void commit(ParserChunkEvent chunk, int lines, int entries) {
+		chunk.end();
+		if (chunk.shouldCommit()) {
+			chunk.file = file.getPath();
+			chunk.lines = lines;
+			chunk.entries = entries;
+			chunk.commit();
+		}
+	}
 }
@@ -26,7 +26,7 @@ package org.pi4.locutil.trace;
 import java.util.*;
 
 import org.pi4.locutil.MACAddress;
-import org.pi4.locutil.Statistics;
+import org.pi4.locutil.StatisticsAccumulator;
 
 /**
  * Recorded signal strength samples.
@@ -231,15 +231,9 @@ public class SignalStrengthSamples {
 		private Vector<Double> noise;
 		private double channel;
 		
-		private boolean unchangedSignalAvg = false;
-		private boolean unchangedSignalVar = false;
-		private boolean unchangedSignalStdDev = false;
-		private double signalAvg = 0.0;
-		private double signalVar = 0.0;
-		private double signalStdDev = 0.0;
-		
-		private boolean unchangedNoiseAvg = false;
-		private double noiseAvg = 0.0;
+		// Running statistics, updated as samples are added
+		private StatisticsAccumulator signalStatistics = new StatisticsAccumulator();
+		private StatisticsAccumulator noiseStatistics = new StatisticsAccumulator();
 		
 		public SignalStrengthNoiseAndChannel() {
 			signalStrength = new Vector<Double>();
@@ -249,22 +243,16 @@ public class SignalStrengthSamples {
 		public SignalStrengthNoiseAndChannel(double signalStrength, double channel) {
 			this.signalStrength = new Vector<Double>();
 			this.noise = new Vector<Double>();
-			this.signalStrength.add(signalStrength);
+			addSignalStrength(signalStrength);
 			this.channel = channel;
-			unchangedSignalAvg = false;
-			unchangedSignalStdDev = false;
-			unchangedNoiseAvg = false;
 		}
 		
 		public SignalStrengthNoiseAndChannel(double signalStrength, double noise, double channel) {
 			this.signalStrength = new Vector<Double>();
 			this.noise = new Vector<Double>();
-			this.signalStrength.add(signalStrength);
-			this.noise.add(noise);
+			addSignalStrength(signalStrength);
+			addNoise(noise);
 			this.channel = channel;
-			unchangedSignalAvg = false;
-			unchangedSignalStdDev = false;
-			unchangedNoiseAvg = false;
 		}
 		
 		public double getFirstSignalStrength() {
@@ -276,24 +264,17 @@ public class SignalStrengthSamples {
 		}
 		
 		public double getAverageSignalStrength() {
-			if (unchangedSignalAvg) return signalAvg;
-			signalAvg = Statistics.avg(signalStrength);
-			unchangedSignalAvg = true;
-			return signalAvg;
+			if (signalStrength.isEmpty())
+				throw new IllegalArgumentException("List length = 0");
+			return signalStatistics().getAverage();
 		}
 		
 		public double getVarianceSignalStrength() {
-			if (unchangedSignalVar) return signalVar;
-			signalVar = Statistics.var(signalStrength);
-			unchangedSignalVar = true;
-			return signalVar;
+			return signalStatistics().getVariance();
 		}
 		
 		public double getStandardDeviationSignalStrength() {
-			if (unchangedSignalStdDev) return signalStdDev;
-			signalStdDev = Statistics.stdDev(signalStrength);
-			unchangedSignalStdDev = true;
-			return signalStdDev;
+			return signalStatistics().getStandardDeviation();
 		}
 		
 		public Vector<Double> getSignalStrengthSamples() {
@@ -305,10 +286,9 @@ public class SignalStrengthSamples {
 		}
 		
 		public double getAverageNoise() {
-			if (unchangedNoiseAvg) return noiseAvg;
-			noiseAvg = Statistics.avg(noise);
-			unchangedNoiseAvg = true;
-			return noiseAvg;
+			if (noise.isEmpty())
+				throw new IllegalArgumentException("List length = 0");
+			return noiseStatistics().getAverage();
 		}
 		
 		public double getChannel() {
@@ -317,17 +297,38 @@ public class SignalStrengthSamples {
 		
 		public void addSignalStrength(double signalStrength) {
 			this.signalStrength.add(signalStrength);
-			unchangedSignalAvg = false;
-			unchangedSignalStdDev = false;
+			signalStatistics.add(signalStrength);
 		}
 		
 		public void addNoise(double noise) {
 			this.noise.add(noise);
+			noiseStatistics.add(noise);
 		}
 		
 		public void setChannel(int channel) {
 			this.channel = channel;
 		}
+		
+		// The vectors are handed out by the getters above, so the statistics are
+		// rebuilt if a vector was changed from outside.
+		private StatisticsAccumulator signalStatistics() {
+			if (signalStatistics.getCount() != signalStrength.size())
+				signalStatistics = accumulate(signalStrength);
+			return signalStatistics;
+		}
+		
+		private StatisticsAccumulator noiseStatistics() {
+			if (noiseStatistics.getCount() != noise.size())
+				noiseStatistics = accumulate(noise);
+			return noiseStatistics;
+		}
+		
+		private StatisticsAccumulator accumulate(Vector<Double> values) {
+			StatisticsAccumulator statistics = new StatisticsAccumulator();
+			for (int i = 0; i < values.size(); i++)
+				statistics.add(values.get(i));
+			return statistics;
+		}
 	}
 	
 	/**
@@ -0,0 +1,167 @@
+package org.pi4.locutil.trace;
+
+import java.util.Arrays;
+
+import org.pi4.locutil.MACAddress;
+import org.pi4.locutil.MACAddressIndex;
+
+/**
+ * Compact fingerprint: the ids of the heard access points (see <code>MACAddressIndex</code>)
+ * in ascending order and, in parallel, their average signal strengths. Most access points
+ * are inaudible at most positions, so two fingerprints are compared by walking both
+ * sorted arrays once (merge join) instead of looking up every access point in a
+ * <code>HashMap</code>.
+ *
+ * Two semantics for access points missing in one fingerprint are supported:
+ * <ul>
+ * <li><code>distance</code> skips them, as the empirical method
+ * (<code>Positioning.getEuclideanDistSS</code>),</li>
+ * <li><code>distance(reference, missing)</code> compares every access point of this
+ * fingerprint and substitutes <code>missing</code> (e.g. <code>MISSING_SIGNAL_STRENGTH</code>)
+ * for those the reference does not hear, as the model-based method.</li>
+ * </ul>
+ * Fingerprints are immutable.
+ */
+public final class SparseFingerprint {
+	/**
+	 * Signal strength of an inaudible access point in the model-based method.
+	 */
+	public static final float MISSING_SIGNAL_STRENGTH = -100f;
+
+	private final int[] aps;
+	private final float[] values;
+
+	/**
+	 * Creates a fingerprint from parallel arrays (not copied).
+	 *
+	 * @param aps	the access point ids, strictly ascending
+	 * @param values	the average signal strengths
+	 * @throws IllegalArgumentException	if the ids are not strictly ascending or the lengths differ
+	 */
+	public SparseFingerprint(int[] aps, float[] values) {
+		if (aps.length != values.length)
+			throw new IllegalArgumentException("aps and values must have the same length");
+		for (int i = 1; i < aps.length; i++)
+			if (aps[i - 1] >= aps[i])
+				throw new IllegalArgumentException("The access point ids must be strictly ascending.");
+		this.aps = aps;
+		this.values = values;
+	}
+
+	/**
+	 * Creates the fingerprint of the average signal strengths of the specified samples.
+	 *
+	 * @param ss	the samples
+	 * @param index	the ids of the access points
+	 * @param add	true to add unknown access points to the index, false to leave them out
+	 * @return	the fingerprint
+	 */
+	public static SparseFingerprint of(SignalStrengthSamples ss, MACAddressIndex index, boolean add) {
+		long[] entries = new long[ss.size()];
+		float[] averages = new float[ss.size()];
+		int n = 0;
+		for (MACAddress mac : ss.keySet()) {
+			int ap = add ? index.add(mac) : index.indexOf(mac);
+			if (ap < 0)
+				continue;
+			averages[n] = (float) ss.getAverageSignalStrength(mac);
+			// id in the high bits, the position in averages in the low bits, to sort both at once
+			entries[n] = ((long) ap << 32) | n;
+			n++;
+		}
+		Arrays.sort(entries, 0, n);
+		int[] aps = new int[n];
+		float[] values = new float[n];
+		for (int i = 0; i < n; i++) {
+			aps[i] = (int) (entries[i] >>> 32);
+			values[i] = averages[(int) entries[i]];
+		}
+		return new SparseFingerprint(aps, values);
+	}
+
+	/**
+	 * Returns the number of heard access points.
+	 */
+	public int size() {
+		return aps.length;
+	}
+
+	/**
+	 * Returns the id of the i-th heard access point (ascending).
+	 */
+	public int getAccessPoint(int i) {
+		return aps[i];
+	}
+
+	/**
+	 * Returns the average signal strength of the i-th heard access point.
+	 */
+	public float getSignalStrength(int i) {
+		return values[i];
+	}
+
+	/**
+	 * Returns the average signal strength of the access point with the specified id.
+	 *
+	 * @return	the signal strength, NaN if the access point is not heard
+	 */
+	public float get(int ap) {
+		int i = Arrays.binarySearch(aps, ap);
+		return i >= 0 ? values[i] : Float.NaN;
+	}
+
+	/**
+	 * Returns the Euclidean distance over the access points heard in both fingerprints.
+	 *
+	 * @param other	the other fingerprint
+	 * @return	the distance
+	 */
+	public double distance(SparseFingerprint other) {
+		int[] a = aps;
+		int[] b = other.aps;
+		float[] va = values;
+		float[] vb = other.values;
+		double sum = 0.0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length && j < b.length) {
+			int apA = a[i];
+			int apB = b[j];
+			if (apA == apB) {
+				double diff = va[i++] - vb[j++];
+				sum += diff * diff;
+			} else if (apA < apB) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Returns the Euclidean distance over the access points heard in this fingerprint,
+	 * with <code>missing</code> for the ones the reference does not hear. Access points
+	 * only heard in the reference are skipped.
+	 *
+	 * @param reference	the reference fingerprint, e.g. of the radio map
+	 * @param missing	the signal strength of an access point the reference does not hear
+	 * @return	the distance
+	 */
+	public double distance(SparseFingerprint reference, float missing) {
+		int[] a = aps;
+		int[] b = reference.aps;
+		float[] va = values;
+		float[] vb = reference.values;
+		double sum = 0.0;
+		int j = 0;
+		for (int i = 0; i < a.length; i++) {
+			int ap = a[i];
+			while (j < b.length && b[j] < ap)
+				j++;
+			double diff = va[i] - (j < b.length && b[j] == ap ? vb[j] : missing);
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum);
+	}
+}
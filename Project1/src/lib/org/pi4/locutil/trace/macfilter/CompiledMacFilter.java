@@ -0,0 +1,274 @@
+package org.pi4.locutil.trace.macfilter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Vector;
+
+import org.pi4.locutil.MACAddress;
+
+/**
+ * Immutable snapshot of a filter tree for the inner loop of the <code>Parser</code>.
+ * <code>MacFilterExplizit</code>, <code>MacFilterExclude</code>, <code>MacFilterOr</code>,
+ * <code>MacFilterAnd</code> and <code>MacFilterNot</code> are folded into a single set of
+ * MAC addresses, which is either the set of contained or the set of excluded addresses.
+ * The set is an open addressing hash table over the 48 bit values of the addresses
+ * (see <code>MACAddress.toLong</code>), so a lookup costs a multiplication and usually a
+ * single probe, and needs no <code>MACAddress</code> object.
+ *
+ * Trees with other filter implementations are not folded; the snapshot then delegates
+ * to the tree.
+ *
+ * The filters of a tree can only be changed by adding MAC addresses or filters, so the
+ * snapshot remembers how many were added when it was compiled; <code>isCurrent</code>
+ * tells whether it still matches the tree by counting again, which only walks the
+ * filters of the tree, not their MAC addresses.
+ */
+public final class CompiledMacFilter implements MacFilter {
+	private static final long EMPTY = -1L; // not a 48 bit value
+	private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private final long[] table;
+	private final int shift;
+	private final boolean empty;
+	private final boolean exclude;
+	private final MacFilter delegate;
+	private final String description;
+	private final MacFilter source;
+	private final long additions;
+
+	private CompiledMacFilter(Set<Long> macs, boolean exclude, MacFilter delegate, MacFilter source) {
+		int bits = 1;
+		while ((1 << bits) < 2 * macs.size())
+			bits++;
+		table = new long[1 << bits];
+		shift = 64 - bits;
+		Arrays.fill(table, EMPTY);
+		for (long mac : macs) {
+			int slot = slot(mac);
+			while (table[slot] != EMPTY)
+				slot = (slot + 1) & (table.length - 1);
+			table[slot] = mac;
+		}
+		this.exclude = exclude;
+		this.delegate = delegate;
+		empty = source.isEmpty();
+		description = source.toString();
+		this.source = source;
+		additions = additions(source);
+	}
+
+	/**
+	 * Compiles the current state of the specified filter. Later changes to the filter
+	 * are not reflected by the snapshot.
+	 *
+	 * @param mf	the filter
+	 * @return	a filter containing the same MAC addresses as <code>mf</code>
+	 */
+	public static CompiledMacFilter compile(MacFilter mf) {
+		if (mf instanceof CompiledMacFilter)
+			return (CompiledMacFilter) mf;
+		Term term = fold(mf);
+		if (term == null)
+			return new CompiledMacFilter(new HashSet<Long>(), false, mf, mf);
+		return new CompiledMacFilter(term.macs, term.exclude, null, mf);
+	}
+
+	/**
+	 * Returns whether this snapshot still matches the specified filter: whether it was
+	 * compiled from <code>mf</code> and no MAC address or filter was added to the tree
+	 * of <code>mf</code> since (with <code>add</code>; changes to the sets returned by
+	 * <code>getMacs</code> are not noticed).
+	 *
+	 * @param mf	the filter
+	 * @return	<code>true</code> if <code>compile(mf)</code> would give the same filter
+	 */
+	public boolean isCurrent(MacFilter mf) {
+		if (mf == this)
+			return true;
+		return mf == source && additions(mf) == additions;
+	}
+
+	/**
+	 * Returns whether the MAC address with the specified 48 bit value is contained.
+	 *
+	 * @param mac	the value, see <code>MACAddress.toLong</code> and <code>MACAddress.parseLong</code>
+	 * @return	<code>true</code> if the MAC address is contained
+	 */
+	public boolean contains(long mac) {
+		if (delegate != null)
+			return delegate.contains(MACAddress.valueOf(mac));
+		int slot = slot(mac);
+		long found;
+		while ((found = table[slot]) != EMPTY) {
+			if (found == mac)
+				return !exclude;
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return exclude;
+	}
+
+	public boolean contains(MACAddress mac) {
+		if (delegate != null)
+			return delegate.contains(mac);
+		return contains(mac.toLong());
+	}
+
+	/**
+	 * Returns whether this filter contains the MAC addresses not listed instead of the listed ones.
+	 *
+	 * @return	<code>true</code> for an excluding filter
+	 */
+	public boolean isExclude() {
+		return exclude;
+	}
+
+	/**
+	 * Empty if the compiled filter was empty.
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	public String toString() {
+		return "CompiledMacFilter: " + description;
+	}
+
+	/**
+	 * Returns the contained MAC addresses.
+	 *
+	 * @throws UnsupportedOperationException	if the filter is excluding
+	 */
+	public Set<MACAddress> getMacs() {
+		if (delegate != null)
+			return delegate.getMacs();
+		if (exclude)
+			throw new UnsupportedOperationException("The MAC addresses of an excluding filter are not enumerable.");
+		HashSet<MACAddress> macs = new HashSet<MACAddress>();
+		for (long mac : table) {
+			if (mac != EMPTY)
+				macs.add(MACAddress.valueOf(mac));
+		}
+		return macs;
+	}
+
+	public void add(MACAddress mac) {
+		throw new IllegalStateException("A MAC address cannot be added to CompiledMacFilter.");
+	}
+
+	private int slot(long mac) {
+		return (int) ((mac * MULTIPLIER) >>> shift);
+	}
+
+	// A set of MAC addresses, contained (exclude == false) or excluded (exclude == true).
+	private static class Term {
+		HashSet<Long> macs;
+		boolean exclude;
+
+		Term(HashSet<Long> macs, boolean exclude) {
+			this.macs = macs;
+			this.exclude = exclude;
+		}
+
+		Term not() {
+			return new Term(macs, !exclude);
+		}
+
+		Term or(Term other) {
+			if (!exclude && !other.exclude) {
+				HashSet<Long> union = new HashSet<Long>(macs);
+				union.addAll(other.macs);
+				return new Term(union, false);
+			}
+			if (exclude && other.exclude) {
+				HashSet<Long> intersection = new HashSet<Long>(macs);
+				intersection.retainAll(other.macs);
+				return new Term(intersection, true);
+			}
+			// all but the excluded ones, unless listed by the other term
+			Term listed = exclude ? other : this;
+			Term excluded = exclude ? this : other;
+			HashSet<Long> difference = new HashSet<Long>(excluded.macs);
+			difference.removeAll(listed.macs);
+			return new Term(difference, true);
+		}
+
+		Term and(Term other) {
+			return not().or(other.not()).not();
+		}
+	}
+
+	// Returns null if the tree contains a filter that cannot be folded.
+	private static Term fold(MacFilter mf) {
+		if (mf instanceof CompiledMacFilter) {
+			CompiledMacFilter compiled = (CompiledMacFilter) mf;
+			if (compiled.delegate != null)
+				return fold(compiled.delegate);
+			HashSet<Long> macs = new HashSet<Long>();
+			for (long mac : compiled.table) {
+				if (mac != EMPTY)
+					macs.add(mac);
+			}
+			return new Term(macs, compiled.exclude);
+		}
+		if (mf.getClass() == MacFilterExplizit.class) {
+			return new Term(toLongs(((MacFilterExplizit) mf).macs), false);
+		}
+		if (mf.getClass() == MacFilterExclude.class) {
+			return new Term(toLongs(((MacFilterExclude) mf).excludedMacs), true);
+		}
+		if (mf.getClass() == MacFilterOr.class) {
+			Term term = new Term(new HashSet<Long>(), false);
+			for (MacFilter child : ((MacFilterOr) mf).macFilters) {
+				Term childTerm = fold(child);
+				if (childTerm == null)
+					return null;
+				term = term.or(childTerm);
+			}
+			return term;
+		}
+		if (mf.getClass() == MacFilterAnd.class) {
+			Term term = new Term(new HashSet<Long>(), true);
+			for (MacFilter child : ((MacFilterAnd) mf).macFilters) {
+				Term childTerm = fold(child);
+				if (childTerm == null)
+					return null;
+				term = term.and(childTerm);
+			}
+			return term;
+		}
+		if (mf.getClass() == MacFilterNot.class) {
+			Term term = fold(((MacFilterNot) mf).macFilter);
+			return term == null ? null : term.not();
+		}
+		return null;
+	}
+
+	// The number of MAC addresses and filters added to the tree, which only grows. The
+	// filters that are not folded are read by the snapshot itself, so they count 0.
+	private static long additions(MacFilter mf) {
+		if (mf.getClass() == MacFilterExplizit.class)
+			return ((MacFilterExplizit) mf).macs.size();
+		if (mf.getClass() == MacFilterExclude.class)
+			return ((MacFilterExclude) mf).excludedMacs.size();
+		if (mf.getClass() == MacFilterOr.class || mf.getClass() == MacFilterAnd.class) {
+			Vector<MacFilter> children = mf.getClass() == MacFilterOr.class ? ((MacFilterOr) mf).macFilters : ((MacFilterAnd) mf).macFilters;
+			long additions = children.size();
+			for (MacFilter child : children)
+				additions += additions(child);
+			return additions;
+		}
+		if (mf.getClass() == MacFilterNot.class)
+			return additions(((MacFilterNot) mf).macFilter);
+		return 0;
+	}
+
+	private static HashSet<Long> toLongs(Set<MACAddress> macs) {
+		HashSet<Long> longs = new HashSet<Long>();
+		Iterator<MACAddress> it = macs.iterator();
+		while (it.hasNext())
+			longs.add(it.next().toLong());
+		return longs;
+	}
+}
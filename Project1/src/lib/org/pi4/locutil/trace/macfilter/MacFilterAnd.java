@@ -0,0 +1,61 @@
+package org.pi4.locutil.trace.macfilter;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import org.pi4.locutil.MACAddress;
+
+/**
+ * Contains the MAC addresses contained by all of its filters.
+ */
+public class MacFilterAnd implements MacFilter {
+	Vector<MacFilter> macFilters;
+	
+	public MacFilterAnd() {
+		macFilters = new Vector<MacFilter>();
+	}
+	
+	public void add(MacFilter mf) {
+		macFilters.add(mf);
+	}
+	
+	public boolean contains(MACAddress mac) {
+		for (MacFilter mf : macFilters) {
+			if (!mf.contains(mac)) return false;
+		}
+		return true;
+	}
+	
+	public boolean isEmpty() {
+		if (macFilters.size() > 0) return false;
+		return true;
+	}
+	
+	public String toString() {
+		StringBuffer sf = new StringBuffer();
+		sf.append("MacFilterAnd:");
+		sf.append(' ');
+		for (MacFilter mf : macFilters) {
+			sf.append(mf);
+			sf.append(' ');
+		}
+		return sf.toString();
+	}
+	
+	public Set<MACAddress> getMacs() {
+		HashSet<MACAddress> macs = null;
+		for (MacFilter mf : macFilters) {
+			if (macs == null) {
+				macs = new HashSet<MACAddress>(mf.getMacs());
+			} else {
+				macs.retainAll(mf.getMacs());
+			}
+		}
+		return macs == null ? new HashSet<MACAddress>() : macs;
+	}
+	
+	public void add(MACAddress mac) {
+		throw new IllegalStateException("A MAC address cannot be added to MacFilterAnd.");
+	}
+}
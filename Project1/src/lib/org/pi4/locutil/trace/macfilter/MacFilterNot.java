@@ -0,0 +1,41 @@
+package org.pi4.locutil.trace.macfilter;
+
+import java.util.Set;
+
+import org.pi4.locutil.MACAddress;
+
+/**
+ * Contains the MAC addresses its filter does not contain.
+ */
+public class MacFilterNot implements MacFilter {
+	MacFilter macFilter;
+	
+	public MacFilterNot(MacFilter mf) {
+		if (mf == null)
+			throw new IllegalArgumentException("mf cannot be null");
+		macFilter = mf;
+	}
+	
+	public boolean contains(MACAddress mac) {
+		return !macFilter.contains(mac);
+	}
+	
+	/**
+	 * Never empty: even the negation of an empty filter decides for every MAC address.
+	 */
+	public boolean isEmpty() {
+		return false;
+	}
+	
+	public String toString() {
+		return "MacFilterNot: " + macFilter;
+	}
+	
+	public Set<MACAddress> getMacs() {
+		throw new UnsupportedOperationException("The MAC addresses of MacFilterNot are not enumerable.");
+	}
+	
+	public void add(MACAddress mac) {
+		throw new IllegalStateException("A MAC address cannot be added to MacFilterNot.");
+	}
+}
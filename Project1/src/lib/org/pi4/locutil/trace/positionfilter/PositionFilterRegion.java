@@ -0,0 +1,242 @@
+package org.pi4.locutil.trace.positionfilter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.pi4.locutil.GeoPosition;
+
+/**
+ * PositionFilterRegion contains the positions inside of a set of regions: rectangles and
+ * polygons (in the x/y plane, optionally restricted to one floor, i.e. one z coordinate)
+ * and whole floors. Points on the border of a rectangle are inside, points on the border
+ * of a polygon may be inside or outside.
+ *
+ * The regions are indexed by a uniform grid over their bounding box, which is built on the
+ * first lookup after a change. A lookup then only tests the regions overlapping the cell of
+ * the position, so the filter stays fast for floor plans with many rooms. This class is
+ * supposed to be used for the online as well as the offline set.
+ */
+public class PositionFilterRegion implements PositionFilter {
+	private static final int MAX_CELLS_PER_AXIS = 256;
+
+	ArrayList<double[]> xs; // null for rectangles
+	ArrayList<double[]> ys;
+	ArrayList<double[]> boxes; // minX, minY, maxX, maxY
+	ArrayList<Double> regionFloors; // NaN for all floors
+	HashSet<Double> floors;
+	private volatile Grid grid;
+
+	public PositionFilterRegion() {
+		xs = new ArrayList<double[]>();
+		ys = new ArrayList<double[]>();
+		boxes = new ArrayList<double[]>();
+		regionFloors = new ArrayList<Double>();
+		floors = new HashSet<Double>();
+	}
+
+	/**
+	 * Adds a rectangle on all floors.
+	 */
+	public void addRectangle(double x1, double y1, double x2, double y2) {
+		addRectangle(x1, y1, x2, y2, Double.NaN);
+	}
+
+	/**
+	 * Adds a rectangle on the specified floor.
+	 *
+	 * @param z	the z coordinate of the floor, NaN for all floors
+	 */
+	public void addRectangle(double x1, double y1, double x2, double y2, double z) {
+		add(null, null, new double[] { Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2) }, z);
+	}
+
+	/**
+	 * Adds a polygon on all floors.
+	 */
+	public void addPolygon(double[] x, double[] y) {
+		addPolygon(x, y, Double.NaN);
+	}
+
+	/**
+	 * Adds a polygon on the specified floor.
+	 *
+	 * @param x	the x coordinates of the vertices
+	 * @param y	the y coordinates of the vertices
+	 * @param z	the z coordinate of the floor, NaN for all floors
+	 * @throws IllegalArgumentException	if there are less than three vertices
+	 */
+	public void addPolygon(double[] x, double[] y, double z) {
+		if ((x.length != y.length) || (x.length < 3))
+			throw new IllegalArgumentException("A polygon needs at least three vertices with x and y coordinates.");
+		double[] box = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = 0; i < x.length; i++) {
+			box[0] = Math.min(box[0], x[i]);
+			box[1] = Math.min(box[1], y[i]);
+			box[2] = Math.max(box[2], x[i]);
+			box[3] = Math.max(box[3], y[i]);
+		}
+		add(x.clone(), y.clone(), box, z);
+	}
+
+	/**
+	 * Adds a whole floor.
+	 *
+	 * @param z	the z coordinate of the floor
+	 */
+	public void addFloor(double z) {
+		floors.add(z);
+		grid = null;
+	}
+
+	private void add(double[] x, double[] y, double[] box, double z) {
+		xs.add(x);
+		ys.add(y);
+		boxes.add(box);
+		regionFloors.add(z);
+		grid = null;
+	}
+
+	public boolean contains(GeoPosition pos) {
+		return contains(pos.getX(), pos.getY(), pos.getZ());
+	}
+
+	/**
+	 * Returns whether the specified position is inside of a region.
+	 *
+	 * @return	<code>true</code> if the position is inside
+	 */
+	public boolean contains(double x, double y, double z) {
+		Grid g = grid;
+		if (g == null) {
+			g = new Grid(this);
+			grid = g;
+		}
+		return g.contains(x, y, z);
+	}
+
+	public boolean isEmpty() {
+		return boxes.isEmpty() && floors.isEmpty();
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("PositionFilterRegion: ");
+		if (isEmpty()) {
+			sb.append("Empty");
+		} else {
+			int rectangles = 0;
+			for (double[] x : xs) {
+				if (x == null) rectangles++;
+			}
+			sb.append(rectangles).append(" rectangles, ");
+			sb.append(xs.size() - rectangles).append(" polygons, ");
+			sb.append(floors.size()).append(" floors");
+		}
+		return sb.toString();
+	}
+
+	// Immutable snapshot of the regions, indexed by a uniform grid.
+	private static class Grid {
+		final double[][] xs;
+		final double[][] ys;
+		final double[][] boxes;
+		final double[] regionFloors;
+		final double[] floors;
+		final double minX, minY, cellWidth, cellHeight;
+		final int columns, rows;
+		final int[][] cells; // indices of the regions overlapping a cell
+
+		Grid(PositionFilterRegion filter) {
+			int n = filter.boxes.size();
+			xs = filter.xs.toArray(new double[n][]);
+			ys = filter.ys.toArray(new double[n][]);
+			boxes = filter.boxes.toArray(new double[n][]);
+			regionFloors = new double[n];
+			for (int i = 0; i < n; i++)
+				regionFloors[i] = filter.regionFloors.get(i);
+			floors = new double[filter.floors.size()];
+			int f = 0;
+			for (double z : filter.floors)
+				floors[f++] = z;
+
+			double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+			double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+			for (double[] box : boxes) {
+				x0 = Math.min(x0, box[0]);
+				y0 = Math.min(y0, box[1]);
+				x1 = Math.max(x1, box[2]);
+				y1 = Math.max(y1, box[3]);
+			}
+			// about one region per cell
+			int perAxis = Math.max(1, Math.min(MAX_CELLS_PER_AXIS, (int) Math.ceil(Math.sqrt(n))));
+			minX = x0;
+			minY = y0;
+			columns = perAxis;
+			rows = perAxis;
+			cellWidth = n == 0 ? 1.0 : Math.max((x1 - x0) / columns, Double.MIN_NORMAL);
+			cellHeight = n == 0 ? 1.0 : Math.max((y1 - y0) / rows, Double.MIN_NORMAL);
+
+			int[] counts = new int[columns * rows];
+			for (double[] box : boxes)
+				for (int r = row(box[1]); r <= row(box[3]); r++)
+					for (int c = column(box[0]); c <= column(box[2]); c++)
+						counts[r * columns + c]++;
+			cells = new int[columns * rows][];
+			for (int i = 0; i < cells.length; i++)
+				cells[i] = new int[counts[i]];
+			for (int i = 0; i < n; i++) {
+				double[] box = boxes[i];
+				for (int r = row(box[1]); r <= row(box[3]); r++)
+					for (int c = column(box[0]); c <= column(box[2]); c++) {
+						int cell = r * columns + c;
+						cells[cell][cells[cell].length - counts[cell]--] = i;
+					}
+			}
+		}
+
+		boolean contains(double x, double y, double z) {
+			for (int i = 0; i < floors.length; i++) {
+				if (floors[i] == z) return true;
+			}
+			if (cells.length == 0 || boxes.length == 0)
+				return false;
+			double cx = (x - minX) / cellWidth;
+			double cy = (y - minY) / cellHeight;
+			// outside of the bounding box of all regions (or NaN)
+			if (!(cx >= 0 && cx <= columns && cy >= 0 && cy <= rows))
+				return false;
+			int[] candidates = cells[Math.min((int) cy, rows - 1) * columns + Math.min((int) cx, columns - 1)];
+			for (int i = 0; i < candidates.length; i++) {
+				int region = candidates[i];
+				double regionFloor = regionFloors[region];
+				if (!Double.isNaN(regionFloor) && regionFloor != z)
+					continue;
+				double[] box = boxes[region];
+				if (x < box[0] || x > box[2] || y < box[1] || y > box[3])
+					continue;
+				if (xs[region] == null || insidePolygon(xs[region], ys[region], x, y))
+					return true;
+			}
+			return false;
+		}
+
+		int column(double x) {
+			return Math.max(0, Math.min(columns - 1, (int) ((x - minX) / cellWidth)));
+		}
+
+		int row(double y) {
+			return Math.max(0, Math.min(rows - 1, (int) ((y - minY) / cellHeight)));
+		}
+
+		// even-odd rule
+		static boolean insidePolygon(double[] px, double[] py, double x, double y) {
+			boolean inside = false;
+			for (int i = 0, j = px.length - 1; i < px.length; j = i++) {
+				if (((py[i] > y) != (py[j] > y)) &&
+					(x < (px[j] - px[i]) * (y - py[i]) / (py[j] - py[i]) + px[i]))
+					inside = !inside;
+			}
+			return inside;
+		}
+	}
+}
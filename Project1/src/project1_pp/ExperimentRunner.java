@@ -0,0 +1,226 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package project1_pp;
+
+import FileParser.EstimateWriter;
+import Logic.CompiledRadioMap;
+import Logic.DistanceMetric;
+import Logic.DistanceMetrics;
+import Logic.EstimateSink;
+import Logic.KNNEngine;
+import Logic.ParallelRadioMapBuilder;
+import Logic.Positioning;
+import Logic.StreamingEvaluating;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import org.pi4.locutil.io.TraceGenerator;
+import org.pi4.locutil.metrics.LatencyHistogram;
+import org.pi4.locutil.metrics.Metrics;
+
+/**
+ * Runs the experiments described by a configuration file (java.util.Properties):
+ * <pre>
+ * threads=2
+ * dataset.MU.offline=src/data/MU.1.5meters.offline.trace
+ * dataset.MU.online=src/data/MU.1.5meters.online.trace
+ * experiments=ENN,MBKNN,EUC3
+ * experiment.ENN.dataset=MU
+ * experiment.ENN.method=empirical
+ * experiment.ENN.k=1
+ * experiment.ENN.output=empirical_FP_NN_output.txt
+ * experiment.ENN.score=score_ENN.txt
+ * experiment.MBKNN.method=model
+ * experiment.MBKNN.pd0=-33.77
+ * experiment.MBKNN.n=3.415
+ * experiment.MBKNN.d0=1.0
+ * experiment.EUC3.method=metric
+ * experiment.EUC3.metric=euclidean
+ * ...
+ * </pre>
+ * The methods are empirical (Positioning.empirical_FP_KNN), model (Positioning.model_FP_KNN
+ * with pd0, n and d0) and metric (k nearest neighbors with a distance metric of
+ * DistanceMetrics on a compiled radio map). The score file, with the CDF of the errors,
+ * is optional.
+ *
+ * The experiments form a graph of tasks on a fixed pool of threads: every dataset is
+ * parsed once and its traces are shared by all its experiments, the compiled radio map
+ * of a dataset is built once and shared by all its metric experiments, an experiment
+ * starts as soon as what it needs is ready and its score is written as soon as it ends.
+ *
+ * @author Pere
+ */
+public class ExperimentRunner {
+
+    private static final LatencyHistogram RUN_TIME = Metrics.histogram("experiments.run");
+
+    private final Properties config;
+    private final Map<String, CompletableFuture<TraceGenerator>> datasets = new HashMap<>();
+    private final Map<String, CompletableFuture<CompiledRadioMap>> radioMaps = new HashMap<>();
+    private ExecutorService executor;
+
+    public ExperimentRunner(Properties config) {
+        this.config = config;
+    }
+
+    public static ExperimentRunner load(File configFile) throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = new FileInputStream(configFile)) {
+            config.load(in);
+        }
+        return new ExperimentRunner(config);
+    }
+
+    /**
+     * Runs all the experiments and waits for them. If an experiment fails, the others
+     * still run to the end before its exception is thrown.
+     *
+     * @return  the evaluation of every experiment, in the order of the configuration
+     */
+    public Map<String, StreamingEvaluating> run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int threads = Integer.parseInt(config.getProperty("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be >= 1");
+        Map<String, StreamingEvaluating> evaluations = new LinkedHashMap<>();
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            for (String name : config.getProperty("experiments", "").split(",")) {
+                name = name.trim();
+                if (name.isEmpty())
+                    continue;
+                StreamingEvaluating evaluation = new StreamingEvaluating();
+                evaluations.put(name, evaluation);
+                tasks.add(schedule(name, evaluation));
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+            executor = null;
+            datasets.clear();
+            radioMaps.clear();
+        }
+        RUN_TIME.recordSince(start);
+        return evaluations;
+    }
+
+    private CompletableFuture<Void> schedule(String name, StreamingEvaluating evaluation) {
+        // The parameters are read before anything runs, so a wrong configuration fails at once.
+        String prefix = "experiment." + name + ".";
+        String dataset = required(prefix + "dataset");
+        String method = config.getProperty(prefix + "method", "empirical");
+        int k = Integer.parseInt(config.getProperty(prefix + "k", "1"));
+        File output = new File(required(prefix + "output"));
+        String score = config.getProperty(prefix + "score");
+
+        CompletableFuture<Void> experiment;
+        if (method.equals("empirical")) {
+            experiment = dataset(dataset).thenAcceptAsync(traces ->
+                    write(output, evaluation, sink -> new Positioning(traces).empirical_FP_KNN(k, sink)), executor);
+        } else if (method.equals("model")) {
+            double pd0 = Double.parseDouble(required(prefix + "pd0"));
+            double n = Double.parseDouble(required(prefix + "n"));
+            double d0 = Double.parseDouble(config.getProperty(prefix + "d0", "1.0"));
+            experiment = dataset(dataset).thenAcceptAsync(traces ->
+                    write(output, evaluation, sink -> new Positioning(traces).model_FP_KNN(sink, k, pd0, n, d0)), executor);
+        } else if (method.equals("metric")) {
+            DistanceMetric metric = DistanceMetrics.forName(config.getProperty(prefix + "metric", "euclidean"));
+            experiment = dataset(dataset).thenCombineAsync(radioMap(dataset), (traces, radioMap) -> {
+                KNNEngine engine = new KNNEngine(radioMap, k, metric);
+                write(output, evaluation, sink -> new Positioning(traces).empirical_FP_KNN(engine, sink));
+                return null;
+            }, executor);
+        } else {
+            throw new IllegalArgumentException("Unknown method of experiment " + name + ": " + method);
+        }
+        if (score == null)
+            return experiment;
+        return experiment.thenRunAsync(() -> {
+            try {
+                evaluation.writeCDF(new File(score));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    // The traces of a dataset, parsed by the first experiment that needs them (both files concurrently)
+    private CompletableFuture<TraceGenerator> dataset(String name) {
+        CompletableFuture<TraceGenerator> traces = datasets.get(name);
+        if (traces == null) {
+            File offline = new File(required("dataset." + name + ".offline"));
+            File online = new File(required("dataset." + name + ".online"));
+            traces = Positioning.loadTraces(offline, online, executor);
+            datasets.put(name, traces);
+        }
+        return traces;
+    }
+
+    // The radio map of one offline set of a dataset, compiled once for all its metric experiments
+    private CompletableFuture<CompiledRadioMap> radioMap(String name) {
+        CompletableFuture<CompiledRadioMap> radioMap = radioMaps.get(name);
+        if (radioMap == null) {
+            radioMap = dataset(name).thenApplyAsync(traces -> {
+                TraceGenerator tg = new TraceGenerator(traces);
+                tg.generate();
+                // The radio map is one task of the graph, so it takes one of its threads.
+                ParallelRadioMapBuilder builder = new ParallelRadioMapBuilder();
+                builder.setThreads(1);
+                return builder.build(tg.getOffline());
+            }, executor);
+            radioMaps.put(name, radioMap);
+        }
+        return radioMap;
+    }
+
+    private String required(String key) {
+        String value = config.getProperty(key);
+        if (value == null)
+            throw new IllegalArgumentException("Missing " + key + " in the configuration");
+        return value.trim();
+    }
+
+    // Writes the estimations of an experiment and evaluates them at the same time
+    private static void write(File output, StreamingEvaluating evaluation, Consumer<EstimateSink> experiment) {
+        try (EstimateWriter writer = new EstimateWriter(output)) {
+            experiment.accept(writer.andThen(evaluation));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File configFile = new File(args.length > 0 ? args[0] : "experiments.properties");
+        Map<String, StreamingEvaluating> evaluations = load(configFile).run();
+        for (Map.Entry<String, StreamingEvaluating> evaluation : evaluations.entrySet())
+            System.out.println(evaluation.getKey() + ": average error " + evaluation.getValue().getStatistics().getAverage() + " m");
+        System.out.print(Metrics.toText());
+    }
+}
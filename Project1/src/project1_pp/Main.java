@@ -1,9 +1,11 @@
 
 package project1_pp;
 
-import Logic.Evaluating;
+import FileParser.EstimateWriter;
 import Logic.Positioning;
+import Logic.StreamingEvaluating;
 import java.io.File;
+import org.pi4.locutil.metrics.Metrics;
 
 /**
  *
@@ -29,21 +31,33 @@ public class Main {
             Positioning empiricalPositioning = new Positioning();
             Positioning modelbasedPositioning = new Positioning();
             
-            empiricalPositioning.empirical_FP_KNN(1,output1);
-            empiricalPositioning.empirical_FP_KNN(3, output2);
+            // Each run writes its estimations and evaluates them at the same time, 
+            // without reading the output file back.
+            StreamingEvaluating empNNEvaluation = new StreamingEvaluating();
+            StreamingEvaluating empKNNEvaluation = new StreamingEvaluating();
+            StreamingEvaluating mbNNEvaluation = new StreamingEvaluating();
+            StreamingEvaluating mbKNNEvaluation = new StreamingEvaluating();
             
-            modelbasedPositioning.model_FP_KNN(output3, 1, -33.77, 3.415, 1.0);
-            modelbasedPositioning.model_FP_KNN(output4, 3, -33.77, 3.415, 1.0);
+            try (EstimateWriter writer = new EstimateWriter(output1)) {
+                empiricalPositioning.empirical_FP_KNN(1, writer.andThen(empNNEvaluation));
+            }
+            try (EstimateWriter writer = new EstimateWriter(output2)) {
+                empiricalPositioning.empirical_FP_KNN(3, writer.andThen(empKNNEvaluation));
+            }
+            try (EstimateWriter writer = new EstimateWriter(output3)) {
+                modelbasedPositioning.model_FP_KNN(writer.andThen(mbNNEvaluation), 1, -33.77, 3.415, 1.0);
+            }
+            try (EstimateWriter writer = new EstimateWriter(output4)) {
+                modelbasedPositioning.model_FP_KNN(writer.andThen(mbKNNEvaluation), 3, -33.77, 3.415, 1.0);
+            }
             
-            Evaluating empNNEvaluation = new Evaluating(output1);
-            Evaluating empKNNEvaluation = new Evaluating(output2);
-            Evaluating mbNNEvaluation = new Evaluating(output3);
-            Evaluating mbKNNEvaluation = new Evaluating(output4);
+            empNNEvaluation.writeCDF(score1);
+            empKNNEvaluation.writeCDF(score2);
+            mbNNEvaluation.writeCDF(score3);
+            mbKNNEvaluation.writeCDF(score4);
             
-            empNNEvaluation.scoreNN(score1);
-            empKNNEvaluation.scoreNN(score2);
-            mbNNEvaluation.scoreNN(score3);
-            mbKNNEvaluation.scoreNN(score4);
+            // Time spent per stage
+            System.out.print(Metrics.toText());
             
         }catch (Exception e) {
             e.printStackTrace();